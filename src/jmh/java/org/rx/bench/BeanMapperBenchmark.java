@@ -0,0 +1,39 @@
+package org.rx.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.rx.test.bean.SourceBean;
+import org.rx.test.bean.TargetBean;
+import org.rx.util.BeanMapper;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BeanMapperBenchmark {
+    private BeanMapper mapper;
+    private SourceBean source;
+
+    @Setup
+    public void setup() {
+        mapper = new BeanMapper();
+        mapper.setConfig(SourceBean.class, TargetBean.class, p -> "info".equals(p) ? "name" : null, "luckyNum");
+        source = new SourceBean();
+        source.setName("rx ");
+        source.setAge(18);
+        source.setMoney(200L);
+        source.setKids(2L);
+    }
+
+    @Benchmark
+    public TargetBean map() {
+        return mapper.map(source, TargetBean.class);
+    }
+
+    @Benchmark
+    public TargetBean mapWithFlags() {
+        return mapper.map(source, new TargetBean(), BeanMapper.Flags.TrimString | BeanMapper.Flags.SkipNull);
+    }
+}
@@ -0,0 +1,35 @@
+package org.rx.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.rx.cache.WeakCache;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CacheBenchmark {
+    @Param({ "1024" })
+    private int                       keyCount;
+    private WeakCache<Integer, Object> cache;
+    private Object[]                  values;
+
+    @Setup
+    public void setup() {
+        cache = new WeakCache<>();
+        values = new Object[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            values[i] = new Object();
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object getOrAdd() {
+        int key = ThreadLocalRandom.current().nextInt(keyCount);
+        return cache.getOrAdd(key, p -> values[p]);
+    }
+}
@@ -0,0 +1,41 @@
+package org.rx.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.rx.App;
+import org.rx.Contract;
+import org.rx.test.bean.SourceBean;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ConvertBenchmark {
+    private SourceBean bean;
+
+    @Setup
+    public void setup() {
+        bean = new SourceBean();
+        bean.setName("rx");
+        bean.setAge(18);
+        bean.setMoney(200L);
+    }
+
+    @Benchmark
+    public Integer changeTypeToInt() {
+        return App.changeType("1024", Integer.class);
+    }
+
+    @Benchmark
+    public BigDecimal changeTypeToDecimal() {
+        return App.changeType(1024L, BigDecimal.class);
+    }
+
+    @Benchmark
+    public String toJsonString() {
+        return Contract.toJsonString(bean);
+    }
+}
@@ -0,0 +1,56 @@
+package org.rx.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.rx.NQuery;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class NQueryBenchmark {
+    @Param({ "1000", "100000" })
+    private int           size;
+    private List<Integer> source;
+
+    @Setup
+    public void setup() {
+        source = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            source.add(i);
+        }
+    }
+
+    private NQuery<Integer> chain(NQuery<Integer> q) {
+        return q.where(p -> p % 3 != 0).select(p -> p * 2).orderByDescending(p -> p % 100).take(100);
+    }
+
+    @Benchmark
+    public List<Integer> serialChain() {
+        return chain(NQuery.of(source)).toList();
+    }
+
+    @Benchmark
+    public List<Integer> lazyChain() {
+        return chain(NQuery.of(source).lazy()).toList();
+    }
+
+    @Benchmark
+    public List<Integer> parallelChain() {
+        return chain(NQuery.of(source, true)).toList();
+    }
+
+    @Benchmark
+    public double serialGroupBy() {
+        return NQuery.of(source).groupBy(p -> p % 16, p -> p.right.count()).sum(p -> p);
+    }
+
+    @Benchmark
+    public double parallelGroupBy() {
+        return NQuery.of(source, true).groupBy(p -> p % 16, p -> p.right.count()).sum(p -> p);
+    }
+}
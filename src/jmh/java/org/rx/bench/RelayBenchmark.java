@@ -0,0 +1,90 @@
+package org.rx.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.rx.socket.DirectSocket;
+import org.rx.socket.Sockets;
+import org.rx.util.AsyncTask;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Echo round trips through a loopback DirectSocket, one op moves chunkSize bytes each way.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RelayBenchmark {
+    @Param({ "Blocking", "Selector" })
+    private DirectSocket.RelayMode relayMode;
+    @Param({ "1024", "65536" })
+    private int                    chunkSize;
+    private ServerSocket           echoServer;
+    private DirectSocket           proxy;
+    private Socket                 client;
+    private byte[]                 chunk;
+
+    @Setup
+    public void setup() throws IOException {
+        echoServer = new ServerSocket(0, 128, Sockets.LocalAddress);
+        AsyncTask.TaskFactory.run(() -> {
+            while (!echoServer.isClosed()) {
+                try {
+                    Socket sock = echoServer.accept();
+                    AsyncTask.TaskFactory.run(() -> echo(sock));
+                } catch (IOException ex) {
+                    //closed
+                }
+            }
+        });
+        proxy = new DirectSocket(new InetSocketAddress(Sockets.LocalAddress, 0),
+                (InetSocketAddress) echoServer.getLocalSocketAddress(), null, relayMode);
+        client = new Socket(Sockets.LocalAddress, proxy.getLocalAddress().getPort());
+        client.setTcpNoDelay(true);
+        chunk = new byte[chunkSize];
+    }
+
+    private static void echo(Socket sock) {
+        try (Socket p = sock) {
+            p.setTcpNoDelay(true);
+            InputStream in = p.getInputStream();
+            OutputStream out = p.getOutputStream();
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException ex) {
+            //peer gone
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.close();
+        proxy.close();
+        echoServer.close();
+    }
+
+    @Benchmark
+    public int roundTrip() throws IOException {
+        client.getOutputStream().write(chunk);
+        InputStream in = client.getInputStream();
+        int total = 0;
+        while (total < chunk.length) {
+            int read = in.read(chunk, total, chunk.length - total);
+            if (read < 0) {
+                throw new IOException("relay closed");
+            }
+            total += read;
+        }
+        return total;
+    }
+}
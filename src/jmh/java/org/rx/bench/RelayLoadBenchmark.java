@@ -0,0 +1,141 @@
+package org.rx.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.rx.socket.DirectSocket;
+import org.rx.socket.Sockets;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip latency through a DirectSocket holding many open connections, threads reports the live JVM threads.
+ * The echo server runs on one selector thread so it adds nothing per connection. 10k connections need about 40k file
+ * descriptors: mvn -P benchmarks test -Djmh.args="RelayLoad -f 1 -p connections=10000"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RelayLoadBenchmark {
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        public long threads;
+    }
+
+    @Param({ "Blocking", "Selector" })
+    private DirectSocket.RelayMode relayMode;
+    @Param({ "1000" })
+    private int                    connections;
+    private ServerSocketChannel    echoServer;
+    private Selector               echoSelector;
+    private DirectSocket           proxy;
+    private Socket[]               clients;
+    private byte[]                 chunk;
+    private int                    next;
+
+    @Setup
+    public void setup() throws IOException {
+        echoServer = ServerSocketChannel.open();
+        echoServer.bind(new InetSocketAddress(Sockets.LocalAddress, 0), 1024);
+        echoServer.configureBlocking(false);
+        echoSelector = Selector.open();
+        echoServer.register(echoSelector, SelectionKey.OP_ACCEPT);
+        Thread echoThread = new Thread(this::echo, "RelayLoadBenchmark-echo");
+        echoThread.setDaemon(true);
+        echoThread.start();
+
+        proxy = new DirectSocket(new InetSocketAddress(Sockets.LocalAddress, 0),
+                (InetSocketAddress) echoServer.getLocalAddress(), null, relayMode);
+        InetSocketAddress proxyAddr = new InetSocketAddress(Sockets.LocalAddress, proxy.getLocalAddress().getPort());
+        chunk = new byte[64];
+        clients = new Socket[connections];
+        for (int i = 0; i < connections; i++) {
+            clients[i] = new Socket(proxyAddr.getAddress(), proxyAddr.getPort());
+            clients[i].setTcpNoDelay(true);
+        }
+        //every relay is established before measuring
+        for (Socket client : clients) {
+            roundTrip(client);
+        }
+    }
+
+    private void echo() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        while (echoSelector.isOpen()) {
+            try {
+                echoSelector.select();
+                Iterator<SelectionKey> keys = echoSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isAcceptable()) {
+                        SocketChannel channel;
+                        while ((channel = echoServer.accept()) != null) {
+                            channel.configureBlocking(false);
+                            channel.register(echoSelector, SelectionKey.OP_READ);
+                        }
+                        continue;
+                    }
+                    SocketChannel channel = (SocketChannel) key.channel();
+                    buffer.clear();
+                    try {
+                        if (channel.read(buffer) < 0) {
+                            channel.close();
+                            continue;
+                        }
+                        //small echoes always fit the socket buffer
+                        buffer.flip();
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer);
+                        }
+                    } catch (IOException ex) {
+                        channel.close();
+                    }
+                }
+            } catch (Exception ex) {
+                //closed
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        for (Socket client : clients) {
+            client.close();
+        }
+        proxy.close();
+        echoSelector.close();
+        echoServer.close();
+    }
+
+    private void roundTrip(Socket client) throws IOException {
+        client.getOutputStream().write(chunk);
+        InputStream in = client.getInputStream();
+        int total = 0;
+        while (total < chunk.length) {
+            int read = in.read(chunk, total, chunk.length - total);
+            if (read < 0) {
+                throw new IOException("relay closed");
+            }
+            total += read;
+        }
+    }
+
+    @Benchmark
+    public void roundTrip(Counters counters) throws IOException {
+        roundTrip(clients[next++ % clients.length]);
+        counters.threads = ManagementFactory.getThreadMXBean().getThreadCount();
+    }
+}
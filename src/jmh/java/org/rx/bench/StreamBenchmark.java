@@ -0,0 +1,51 @@
+package org.rx.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.rx.util.BinaryStream;
+import org.rx.util.MemoryStream;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class StreamBenchmark {
+    @Param({ "64", "8192" })
+    private int          chunkSize;
+    private byte[]       chunk;
+    private MemoryStream stream;
+    private BinaryStream binary;
+
+    @Setup
+    public void setup() {
+        chunk = new byte[chunkSize];
+        stream = new MemoryStream(chunkSize * 16, false);
+        binary = new BinaryStream(new MemoryStream());
+    }
+
+    @Benchmark
+    public int memoryWriteRead() {
+        stream.setPosition(0);
+        for (int i = 0; i < 16; i++) {
+            stream.write(chunk);
+        }
+        stream.setPosition(0);
+        int total = 0;
+        for (int i = 0; i < 16; i++) {
+            total += stream.read(chunk, 0, chunk.length);
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long binaryWriteRead() {
+        binary.setPosition(0);
+        binary.writeInt(chunkSize);
+        binary.writeLong(System.nanoTime());
+        binary.writeString("rxlib");
+        binary.setPosition(0);
+        return binary.readInt() + binary.readLong() + binary.readString().length();
+    }
+}
@@ -4,6 +4,7 @@ import com.google.common.base.Strings;
 import org.apache.commons.lang3.StringUtils;
 import org.rx.bean.Const;
 import org.rx.bean.Tuple;
+import org.rx.cache.BoundedCache;
 import org.rx.cache.WeakCache;
 import org.rx.security.MD5Util;
 import org.rx.bean.DateTime;
@@ -35,6 +36,7 @@ public class App {
     //region Nested
     public enum CacheContainerKind {
         WeakCache,
+        BoundedCache,
         ThreadStatic,
         ServletRequest
     }
@@ -226,6 +228,9 @@ public class App {
                     request.setAttribute(k, v = supplier.apply(k));
                 }
                 break;
+            case BoundedCache:
+                v = BoundedCache.getOrStore(caller, key, (Function<String, Object>) supplier);
+                break;
             default:
                 v = WeakCache.getOrStore(caller, key, (Function<String, Object>) supplier);
                 break;
@@ -4,6 +4,9 @@ import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONObject;
 import org.rx.bean.Const;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
@@ -106,24 +109,13 @@ public final class Contract {
             return s;
         }
 
-        Class type = arg.getClass();
         NQuery args = null;
         try {
-            boolean first = false;
-            Map map;
-            if (type.isArray() || arg instanceof Iterable) {
-                args = NQuery.of(App.asList(arg));
-            } else if ((map = as(arg, Map.class)) != null) {
-                args = NQuery.of(map.values());
-            } else {
-                args = NQuery.of(arg);
-                first = true;
-            }
-            args = args.where(p -> !NQuery.of(SkipTypes).any(p2 -> p2.isInstance(p)));
+            args = jsonArgs(arg);
             if (!args.any()) {
                 return "{}";
             }
-            return JSON.toJSONString(first ? args.first() : args.asCollection());
+            return JSON.toJSONString(jsonTarget(arg, args));
         } catch (Exception ex) {
             if (args != null) {
                 args.forEach(p -> SkipTypes.add(p.getClass()));
@@ -135,4 +127,45 @@ public final class Contract {
             return json.toJSONString();
         }
     }
+
+    /**
+     * Writes what toJsonString returns as UTF-8 without building the string, a failure is thrown instead of written
+     * since part of the json may be out already.
+     */
+    public static void writeJsonTo(OutputStream out, Object arg) {
+        require(out);
+
+        try {
+            if (arg == null || arg instanceof String) {
+                out.write((arg == null ? "{}" : (String) arg).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            NQuery args = jsonArgs(arg);
+            if (!args.any()) {
+                out.write("{}".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            JSON.writeJSONString(out, jsonTarget(arg, args));
+        } catch (IOException ex) {
+            throw SystemException.wrap(ex);
+        }
+    }
+
+    private static NQuery jsonArgs(Object arg) {
+        NQuery args;
+        Map map;
+        if (arg.getClass().isArray() || arg instanceof Iterable) {
+            args = NQuery.of(App.asList(arg));
+        } else if ((map = as(arg, Map.class)) != null) {
+            args = NQuery.of(map.values());
+        } else {
+            args = NQuery.of(arg);
+        }
+        return args.where(p -> !NQuery.of(SkipTypes).any(p2 -> p2.isInstance(p)));
+    }
+
+    private static Object jsonTarget(Object arg, NQuery args) {
+        return arg.getClass().isArray() || arg instanceof Iterable || arg instanceof Map ? args.asCollection()
+                : args.first();
+    }
 }
@@ -1,12 +1,21 @@
 package org.rx;
 
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 import static org.rx.Contract.values;
 
 public abstract class Disposable implements AutoCloseable {
-    private boolean closed;
+    private static final AtomicIntegerFieldUpdater<Disposable> StateUpdater;
+    private static final int                                   Open = 0, Disposing = 1, Closed = 2;
+
+    static {
+        StateUpdater = AtomicIntegerFieldUpdater.newUpdater(Disposable.class, "state");
+    }
+
+    private volatile int state;
 
     public boolean isClosed() {
-        return closed;
+        return state == Closed;
     }
 
     @Override
@@ -15,15 +24,25 @@ public abstract class Disposable implements AutoCloseable {
         dispose(false);
     }
 
-    private synchronized void dispose(boolean disposing) {
-        if (closed) {
+    /**
+     * CAS instead of a monitor, freeUnmanaged often closes sockets and must not pin a virtual thread's carrier. A
+     * concurrent caller returns at once instead of waiting for the first one to finish.
+     */
+    private void dispose(boolean disposing) {
+        if (!StateUpdater.compareAndSet(this, Open, Disposing)) {
             return;
         }
-        if (disposing) {
-            freeManaged();
+        boolean freed = false;
+        try {
+            if (disposing) {
+                freeManaged();
+            }
+            freeUnmanaged();
+            freed = true;
+        } finally {
+            //a failed free may be retried like before
+            state = freed ? Closed : Open;
         }
-        freeUnmanaged();
-        closed = true;
     }
 
     protected void freeManaged() {
@@ -33,7 +52,7 @@ public abstract class Disposable implements AutoCloseable {
 
     @ErrorCode(messageKeys = { "$type" })
     protected void checkNotClosed() {
-        if (closed) {
+        if (state == Closed) {
             throw new SystemException(values(this.getClass().getSimpleName()));
         }
     }
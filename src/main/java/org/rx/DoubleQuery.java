@@ -0,0 +1,127 @@
+package org.rx;
+
+import java.util.Arrays;
+import java.util.function.DoublePredicate;
+import java.util.function.DoubleUnaryOperator;
+
+import static org.rx.Contract.require;
+
+/**
+ * Primitive view of NQuery, aggregates run over the backing double[] without boxing.
+ */
+public final class DoubleQuery extends PrimitiveQuery {
+    public static DoubleQuery of(double... set) {
+        require(set);
+
+        return new DoubleQuery(set);
+    }
+
+    private final double[] array;
+
+    DoubleQuery(double[] array) {
+        this.array = array;
+    }
+
+    @Override
+    public int count() {
+        return array.length;
+    }
+
+    public DoubleQuery where(DoublePredicate predicate) {
+        require(predicate);
+
+        double[] result = new double[array.length];
+        int count = 0;
+        for (double val : array) {
+            if (predicate.test(val)) {
+                result[count++] = val;
+            }
+        }
+        return new DoubleQuery(count == result.length ? result : Arrays.copyOf(result, count));
+    }
+
+    public DoubleQuery select(DoubleUnaryOperator selector) {
+        require(selector);
+
+        double[] result = new double[array.length];
+        for (int i = 0; i < array.length; i++) {
+            result[i] = selector.applyAsDouble(array[i]);
+        }
+        return new DoubleQuery(result);
+    }
+
+    /**
+     * Kahan summation, same precision as DoubleStream.sum().
+     */
+    public double sum() {
+        double sum = 0, compensation = 0;
+        for (double val : array) {
+            double y = val - compensation;
+            double t = sum + y;
+            compensation = (t - sum) - y;
+            sum = t;
+        }
+        return sum;
+    }
+
+    /**
+     * @return Double.NaN if the set is empty
+     */
+    public double average() {
+        if (array.length == 0) {
+            return Double.NaN;
+        }
+        return sum() / array.length;
+    }
+
+    public double min() {
+        checkAny();
+
+        double min = array[0];
+        for (int i = 1; i < array.length; i++) {
+            if (array[i] < min) {
+                min = array[i];
+            }
+        }
+        return min;
+    }
+
+    public double max() {
+        checkAny();
+
+        double max = array[0];
+        for (int i = 1; i < array.length; i++) {
+            if (array[i] > max) {
+                max = array[i];
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @param bounds ascending bucket bounds, a value v falls into bucket i where bounds[i-1] &lt;= v &lt; bounds[i]
+     * @return bounds.length + 1 bucket counts
+     */
+    public int[] histogram(double... bounds) {
+        require(bounds);
+
+        int[] buckets = new int[bounds.length + 1];
+        for (double val : array) {
+            buckets[bucketOf(Arrays.binarySearch(bounds, val))]++;
+        }
+        return buckets;
+    }
+
+    public double[] toArray() {
+        return array.clone();
+    }
+
+    @Override
+    double[] toDoubleArray() {
+        return array.clone();
+    }
+
+    public NQuery<Double> boxed() {
+        return NQuery.of(Arrays.stream(array).boxed());
+    }
+}
@@ -0,0 +1,125 @@
+package org.rx;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
+
+import static org.rx.Contract.require;
+
+/**
+ * Primitive view of NQuery, aggregates run over the backing int[] without boxing.
+ */
+public final class IntQuery extends PrimitiveQuery {
+    public static IntQuery of(int... set) {
+        require(set);
+
+        return new IntQuery(set);
+    }
+
+    private final int[] array;
+
+    IntQuery(int[] array) {
+        this.array = array;
+    }
+
+    @Override
+    public int count() {
+        return array.length;
+    }
+
+    public IntQuery where(IntPredicate predicate) {
+        require(predicate);
+
+        int[] result = new int[array.length];
+        int count = 0;
+        for (int val : array) {
+            if (predicate.test(val)) {
+                result[count++] = val;
+            }
+        }
+        return new IntQuery(count == result.length ? result : Arrays.copyOf(result, count));
+    }
+
+    public IntQuery select(IntUnaryOperator selector) {
+        require(selector);
+
+        int[] result = new int[array.length];
+        for (int i = 0; i < array.length; i++) {
+            result[i] = selector.applyAsInt(array[i]);
+        }
+        return new IntQuery(result);
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int val : array) {
+            sum += val;
+        }
+        return sum;
+    }
+
+    /**
+     * @return Double.NaN if the set is empty
+     */
+    public double average() {
+        if (array.length == 0) {
+            return Double.NaN;
+        }
+        return (double) sum() / array.length;
+    }
+
+    public int min() {
+        checkAny();
+
+        int min = array[0];
+        for (int i = 1; i < array.length; i++) {
+            if (array[i] < min) {
+                min = array[i];
+            }
+        }
+        return min;
+    }
+
+    public int max() {
+        checkAny();
+
+        int max = array[0];
+        for (int i = 1; i < array.length; i++) {
+            if (array[i] > max) {
+                max = array[i];
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @param bounds ascending bucket bounds, a value v falls into bucket i where bounds[i-1] &lt;= v &lt; bounds[i]
+     * @return bounds.length + 1 bucket counts
+     */
+    public int[] histogram(int... bounds) {
+        require(bounds);
+
+        int[] buckets = new int[bounds.length + 1];
+        for (int val : array) {
+            buckets[bucketOf(Arrays.binarySearch(bounds, val))]++;
+        }
+        return buckets;
+    }
+
+    public int[] toArray() {
+        return array.clone();
+    }
+
+    @Override
+    double[] toDoubleArray() {
+        double[] result = new double[array.length];
+        for (int i = 0; i < array.length; i++) {
+            result[i] = array[i];
+        }
+        return result;
+    }
+
+    public NQuery<Integer> boxed() {
+        return NQuery.of(Arrays.stream(array).boxed());
+    }
+}
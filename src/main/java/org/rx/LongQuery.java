@@ -0,0 +1,129 @@
+package org.rx;
+
+import java.util.Arrays;
+import java.util.function.LongPredicate;
+import java.util.function.LongUnaryOperator;
+
+import static org.rx.Contract.require;
+
+/**
+ * Primitive view of NQuery, aggregates run over the backing long[] without boxing.
+ */
+public final class LongQuery extends PrimitiveQuery {
+    public static LongQuery of(long... set) {
+        require(set);
+
+        return new LongQuery(set);
+    }
+
+    private final long[] array;
+
+    LongQuery(long[] array) {
+        this.array = array;
+    }
+
+    @Override
+    public int count() {
+        return array.length;
+    }
+
+    public LongQuery where(LongPredicate predicate) {
+        require(predicate);
+
+        long[] result = new long[array.length];
+        int count = 0;
+        for (long val : array) {
+            if (predicate.test(val)) {
+                result[count++] = val;
+            }
+        }
+        return new LongQuery(count == result.length ? result : Arrays.copyOf(result, count));
+    }
+
+    public LongQuery select(LongUnaryOperator selector) {
+        require(selector);
+
+        long[] result = new long[array.length];
+        for (int i = 0; i < array.length; i++) {
+            result[i] = selector.applyAsLong(array[i]);
+        }
+        return new LongQuery(result);
+    }
+
+    /**
+     * @throws ArithmeticException if the sum overflows a long
+     */
+    public long sum() {
+        long sum = 0;
+        for (long val : array) {
+            sum = Math.addExact(sum, val);
+        }
+        return sum;
+    }
+
+    /**
+     * @return Double.NaN if the set is empty
+     * @throws ArithmeticException if the sum overflows a long
+     */
+    public double average() {
+        if (array.length == 0) {
+            return Double.NaN;
+        }
+        return (double) sum() / array.length;
+    }
+
+    public long min() {
+        checkAny();
+
+        long min = array[0];
+        for (int i = 1; i < array.length; i++) {
+            if (array[i] < min) {
+                min = array[i];
+            }
+        }
+        return min;
+    }
+
+    public long max() {
+        checkAny();
+
+        long max = array[0];
+        for (int i = 1; i < array.length; i++) {
+            if (array[i] > max) {
+                max = array[i];
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @param bounds ascending bucket bounds, a value v falls into bucket i where bounds[i-1] &lt;= v &lt; bounds[i]
+     * @return bounds.length + 1 bucket counts
+     */
+    public int[] histogram(long... bounds) {
+        require(bounds);
+
+        int[] buckets = new int[bounds.length + 1];
+        for (long val : array) {
+            buckets[bucketOf(Arrays.binarySearch(bounds, val))]++;
+        }
+        return buckets;
+    }
+
+    public long[] toArray() {
+        return array.clone();
+    }
+
+    @Override
+    double[] toDoubleArray() {
+        double[] result = new double[array.length];
+        for (int i = 0; i < array.length; i++) {
+            result[i] = array[i];
+        }
+        return result;
+    }
+
+    public NQuery<Long> boxed() {
+        return NQuery.of(Arrays.stream(array).boxed());
+    }
+}
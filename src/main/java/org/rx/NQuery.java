@@ -1,15 +1,24 @@
 package org.rx;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Streams;
+import org.rx.bean.CompositeKey;
 import org.rx.bean.Tuple;
 
+import java.io.BufferedReader;
+import java.io.IOException;
 import java.lang.reflect.Array;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.*;
+import java.util.stream.Collector;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
@@ -37,7 +46,8 @@ public final class NQuery<T> implements Iterable<T> {
     }
 
     //region of
-    private static final Comparator NaturalOrder = Comparator.naturalOrder(), ReverseOrder = Comparator.reverseOrder();
+    private static final Comparator     NaturalOrder  = Comparator.naturalOrder();
+    private static final ParallelEngine DefaultEngine = new ParallelEngine(null, 0);
 
     public static <T> NQuery<T> of(T... set) {
         return of(Arrays.asList(set));
@@ -58,13 +68,123 @@ public final class NQuery<T> implements Iterable<T> {
 
         return new NQuery<>(set, isParallel);
     }
+
+    /**
+     * Streams the iterable on every terminal call without copying it, a Collection is queried as usual.
+     */
+    public static <T> NQuery<T> of(Iterable<T> iterable) {
+        require(iterable);
+
+        if (iterable instanceof Collection) {
+            return of((Collection<T>) iterable);
+        }
+        return new NQuery<>(() -> StreamSupport.stream(iterable.spliterator(), false), false);
+    }
+
+    /**
+     * Single-pass source, the query can run one terminal call and operators that need a second pass fail fast.
+     */
+    public static <T> NQuery<T> of(Iterator<T> iterator) {
+        require(iterator);
+
+        AtomicBoolean consumed = new AtomicBoolean();
+        NQuery<T> q = new NQuery<>(() -> {
+            checkSinglePass(consumed);
+            return stream(iterator);
+        }, false);
+        q.singlePass = true;
+        return q;
+    }
+
+    public static NQuery<String> lines(Path path) {
+        return lines(path, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the file line by line on every terminal call, the file is closed when the terminal call returns. Only
+     * iterator() leaves it open until the lines run out.
+     */
+    public static NQuery<String> lines(Path path, Charset charset) {
+        require(path, charset);
+
+        return new NQuery<>(() -> {
+            BufferedReader reader;
+            try {
+                reader = Files.newBufferedReader(path, charset);
+            } catch (IOException ex) {
+                throw SystemException.wrap(ex);
+            }
+            return stream(new Iterator<String>() {
+                String line;
+                boolean eof;
+
+                @Override
+                public boolean hasNext() {
+                    if (line != null) {
+                        return true;
+                    }
+                    if (eof) {
+                        return false;
+                    }
+                    try {
+                        if ((line = reader.readLine()) == null) {
+                            eof = true;
+                            reader.close();
+                        }
+                    } catch (IOException ex) {
+                        throw SystemException.wrap(ex);
+                    }
+                    return line != null;
+                }
+
+                @Override
+                public String next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    String next = line;
+                    line = null;
+                    return next;
+                }
+            }).onClose(() -> {
+                try {
+                    reader.close();
+                } catch (IOException ex) {
+                    throw SystemException.wrap(ex);
+                }
+            });
+        }, false);
+    }
+
+    private static <T> Stream<T> stream(Iterator<T> iterator) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED), false);
+    }
+
+    @ErrorCode
+    private static void checkSinglePass(AtomicBoolean consumed) {
+        if (consumed.getAndSet(true)) {
+            throw new SystemException(values());
+        }
+    }
     //endregion
 
     //region Member
-    private Collection current;
-    private boolean    isParallel;
+    private Collection                                         current;
+    private Supplier<Stream<T>>                                pipeline;
+    private boolean                                            isParallel;
+    private Tuple<Function<T, Object[]>, Comparator<Keyed<T>>> sortSpec;
+    private Supplier<Stream<T>>                                sortUpstream;
+    private ParallelEngine                                     engine;
+    private boolean                                            singlePass;
+
+    public boolean isLazy() {
+        return pipeline != null;
+    }
 
     public Stream<T> stream() {
+        if (pipeline != null) {
+            return pipeline.get();
+        }
         return isParallel ? current.parallelStream() : current.stream();
     }
 
@@ -73,43 +193,102 @@ public final class NQuery<T> implements Iterable<T> {
         this.isParallel = isParallel;
     }
 
+    private NQuery(Supplier<Stream<T>> pipeline, boolean isParallel) {
+        this.pipeline = pipeline;
+        this.isParallel = isParallel;
+    }
+
     @Override
     public Iterator<T> iterator() {
         return stream().iterator();
     }
 
-    private <TR> List<TR> newList() {
-        return isParallel ? Collections.synchronizedList(new ArrayList<>()) : new ArrayList<>();
+    /**
+     * Closes a lazy stream once the operation returns, so short-circuits like first() or any() release sources
+     * such as lines() that would otherwise be closed only at the end of the data.
+     */
+    private <TR> TR terminal(Function<Stream<T>, TR> operation) {
+        if (pipeline == null) {
+            return operation.apply(stream());
+        }
+        try (Stream<T> stream = stream()) {
+            return operation.apply(stream);
+        }
     }
 
-    private <TR> Set<TR> newSet() {
-        return isParallel ? ConcurrentHashMap.newKeySet() : new HashSet<>();
+    private ParallelEngine getEngine() {
+        return isNull(engine, DefaultEngine);
     }
 
-    private <TK, TR> Map<TK, TR> newMap() {
-        return isParallel ? new ConcurrentHashMap<>() : new HashMap<>();
+    /**
+     * Random access view for the fork/join engine, copied only when the source can't be indexed.
+     */
+    private List<T> snapshot() {
+        if (pipeline != null) {
+            return terminal(p -> p.collect(Collectors.toList()));
+        }
+        if (current instanceof List && current instanceof RandomAccess) {
+            return (List<T>) current;
+        }
+        return new ArrayList<>(current);
     }
 
     private <TR> Stream<TR> newStream(Collection<TR> set) {
         return isParallel ? set.parallelStream() : set.stream();
     }
 
+    /**
+     * Eager List/RandomAccess source (arrays from of(T...) included), so positional operators become O(1) index
+     * lookups and sublist views.
+     */
+    private List<T> indexed() {
+        if (pipeline == null && current instanceof List && current instanceof RandomAccess) {
+            return (List<T>) current;
+        }
+        return null;
+    }
+
     private <TR> NQuery<TR> me(Collection<TR> set) {
-        return of(set, isParallel);
+        NQuery<TR> q = of(set, isParallel);
+        q.engine = engine;
+        return q;
     }
 
-    private <TR> NQuery<TR> me(Stream<TR> stream) {
-        return me(stream.collect(Collectors.toList()));
+    private <TR> NQuery<TR> me(Supplier<Stream<TR>> pipeline) {
+        NQuery<TR> q = new NQuery<>(pipeline, isParallel);
+        q.engine = engine;
+        q.singlePass = singlePass;
+        return q;
     }
 
-    private NQuery<T> me(EachFunc<T> func) {
-        return me(stream(), func);
+    /**
+     * Eager mode applies the operator and materializes at once, lazy mode composes it into the pipeline.
+     */
+    private <TR> NQuery<TR> me(Function<Stream<T>, Stream<TR>> operator) {
+        if (pipeline != null) {
+            return me(() -> operator.apply(stream()));
+        }
+        if (isParallel && engine != null) {
+            return me(engine.submit(() -> operator.apply(stream()).collect(Collectors.toList())));
+        }
+        return me(operator.apply(stream()).collect(Collectors.toList()));
+    }
+
+    /**
+     * For operators that have to see the whole set before yielding, lazy mode runs the materializer on each
+     * terminal call.
+     */
+    private <TR> NQuery<TR> defer(Supplier<Collection<TR>> materializer) {
+        if (pipeline != null) {
+            return me(() -> newStream(materializer.get()));
+        }
+        return me(materializer.get());
     }
 
-    private <TR> NQuery<TR> me(Stream<TR> stream, EachFunc<TR> func) {
+    private <TR> Stream<TR> each(Stream<TR> stream, EachFunc<TR> func) {
         boolean isParallel = stream.isParallel();
         Spliterator<TR> spliterator = stream.spliterator();
-        return me(StreamSupport.stream(
+        return StreamSupport.stream(
                 new Spliterators.AbstractSpliterator<TR>(spliterator.estimateSize(), spliterator.characteristics()) {
                     AtomicBoolean breaker = new AtomicBoolean();
                     AtomicInteger counter = new AtomicInteger();
@@ -126,7 +305,7 @@ public final class NQuery<T> implements Iterable<T> {
                             }
                         }) && !breaker.get();
                     }
-                }, isParallel));
+                }, isParallel).onClose(stream::close);
     }
 
     @FunctionalInterface
@@ -140,121 +319,300 @@ public final class NQuery<T> implements Iterable<T> {
     }
     //endregion
 
+    /**
+     * Defers every following operator until a terminal call (toList, first, count, sum, iteration...), so a chain
+     * allocates no intermediate lists and short-circuits like where(..).take(n).first() stop early.
+     */
+    public NQuery<T> lazy() {
+        if (pipeline != null) {
+            return this;
+        }
+        Collection<T> set = current;
+        return me(() -> newStream(set));
+    }
+
+    /**
+     * Runs parallel operators on the given pool, leaves of splitThreshold elements are processed into their own
+     * buffers and merged in source order.
+     *
+     * @param splitThreshold &lt;= 0 to size leaves by the pool parallelism
+     */
+    public NQuery<T> parallel(ForkJoinPool pool, int splitThreshold) {
+        require(pool);
+
+        NQuery<T> q = pipeline != null ? new NQuery<>(pipeline, true) : new NQuery<>((Collection<T>) current, true);
+        q.engine = new ParallelEngine(pool, splitThreshold);
+        q.singlePass = singlePass;
+        return q;
+    }
+
+    private <TR> NQuery<TR> fork(ParallelEngine.SinkFunc<T, TR> func) {
+        return defer(() -> getEngine().flatMap(snapshot(), func));
+    }
+
+    @ErrorCode
+    private void checkMultiPass() {
+        if (singlePass) {
+            throw new SystemException(values());
+        }
+    }
+
     public NQuery<T> each(IndexPredicate<T> func) {
-        Iterator<T> tor = this.iterator();
-        int i = 0;
-        while (tor.hasNext()) {
-            if (!func.test(tor.next(), i++)) {
-                break;
+        terminal(p -> {
+            Iterator<T> tor = p.iterator();
+            int i = 0;
+            while (tor.hasNext()) {
+                if (!func.test(tor.next(), i++)) {
+                    break;
+                }
             }
-        }
+            return null;
+        });
         return this;
     }
 
     public <TR> NQuery<TR> select(Function<T, TR> selector) {
-        return me(stream().map(selector));
+        if (isParallel && pipeline == null) {
+            return fork((t, i, sink) -> sink.accept(selector.apply(t)));
+        }
+        return me(p -> p.map(selector));
     }
 
     public <TR> NQuery<TR> select(IndexSelector<T, TR> selector) {
-        List<TR> result = newList();
-        AtomicInteger counter = new AtomicInteger();
-        stream().forEach(t -> result.add(selector.apply(t, counter.getAndIncrement())));
-        return me(result);
+        if (isParallel) {
+            return fork((t, i, sink) -> sink.accept(selector.apply(t, i)));
+        }
+        return me(p -> {
+            AtomicInteger counter = new AtomicInteger();
+            return p.map(t -> selector.apply(t, counter.getAndIncrement()));
+        });
+    }
+
+    public IntQuery selectInt(ToIntFunction<T> selector) {
+        require(selector);
+
+        return new IntQuery(terminal(p -> p.mapToInt(selector).toArray()));
+    }
+
+    public LongQuery selectLong(ToLongFunction<T> selector) {
+        require(selector);
+
+        return new LongQuery(terminal(p -> p.mapToLong(selector).toArray()));
+    }
+
+    public DoubleQuery selectDouble(ToDoubleFunction<T> selector) {
+        require(selector);
+
+        return new DoubleQuery(terminal(p -> p.mapToDouble(selector).toArray()));
     }
 
     public <TR> NQuery<TR> selectMany(Function<T, Collection<TR>> selector) {
-        return me(stream().flatMap(p -> newStream(selector.apply(p))));
+        if (isParallel && pipeline == null) {
+            return fork((t, i, sink) -> selector.apply(t).forEach(sink));
+        }
+        return me(p -> p.flatMap(t -> selector.apply(t).stream()));
     }
 
     public <TR> NQuery<TR> selectMany(IndexSelector<T, Collection<TR>> selector) {
-        List<TR> result = newList();
-        AtomicInteger counter = new AtomicInteger();
-        stream().forEach(t -> newStream(selector.apply(t, counter.getAndIncrement())).forEach(result::add));
-        return me(result);
+        if (isParallel) {
+            return fork((t, i, sink) -> selector.apply(t, i).forEach(sink));
+        }
+        return me(p -> {
+            AtomicInteger counter = new AtomicInteger();
+            return p.flatMap(t -> selector.apply(t, counter.getAndIncrement()).stream());
+        });
     }
 
     public NQuery<T> where(Predicate<T> predicate) {
-        return me(stream().filter(predicate));
+        if (isParallel && pipeline == null) {
+            return fork((t, i, sink) -> {
+                if (predicate.test(t)) {
+                    sink.accept(t);
+                }
+            });
+        }
+        return me(p -> p.filter(predicate));
     }
 
     public NQuery<T> where(IndexPredicate<T> predicate) {
-        List<T> result = newList();
-        AtomicInteger counter = new AtomicInteger();
-        stream().forEach(t -> {
-            if (!predicate.test(t, counter.getAndIncrement())) {
-                return;
-            }
-            result.add(t);
+        if (isParallel) {
+            return fork((t, i, sink) -> {
+                if (predicate.test(t, i)) {
+                    sink.accept(t);
+                }
+            });
+        }
+        return me(p -> {
+            AtomicInteger counter = new AtomicInteger();
+            return p.filter(t -> predicate.test(t, counter.getAndIncrement()));
         });
-        return me(result);
     }
 
     public <TI, TR> NQuery<TR> join(Collection<TI> inner, BiPredicate<T, TI> keySelector,
                                     BiFunction<T, TI, TR> resultSelector) {
-        return me(stream().flatMap(
-                p -> newStream(inner).filter(p2 -> keySelector.test(p, p2)).map(p3 -> resultSelector.apply(p, p3))));
+        return me(p -> join(p, inner, keySelector, resultSelector));
+    }
+
+    private <TI, TR> Stream<TR> join(Stream<T> outer, Collection<TI> inner, BiPredicate<T, TI> keySelector,
+                                     BiFunction<T, TI, TR> resultSelector) {
+        return outer.flatMap(
+                p -> newStream(inner).filter(p2 -> keySelector.test(p, p2)).map(p3 -> resultSelector.apply(p, p3)));
     }
 
     public <TI, TR> NQuery<TR> join(Function<T, TI> innerSelector, BiPredicate<T, TI> keySelector,
                                     BiFunction<T, TI, TR> resultSelector) {
-        List<TI> inner = newList();
-        stream().forEach(t -> inner.add(innerSelector.apply(t)));
-        return join(inner, keySelector, resultSelector);
+        checkMultiPass();
+
+        return me(p -> {
+            List<TI> inner = terminal(s -> s.map(innerSelector).collect(Collectors.toList()));
+            return join(p, inner, keySelector, resultSelector);
+        });
     }
 
     public <TI, TR> NQuery<TR> joinMany(Function<T, Collection<TI>> innerSelector, BiPredicate<T, TI> keySelector,
                                         BiFunction<T, TI, TR> resultSelector) {
-        List<TI> inner = newList();
-        stream().forEach(t -> newStream(innerSelector.apply(t)).forEach(inner::add));
-        return join(inner, keySelector, resultSelector);
+        checkMultiPass();
+
+        return me(p -> {
+            List<TI> inner = terminal(
+                    s -> s.flatMap(t -> innerSelector.apply(t).stream()).collect(Collectors.toList()));
+            return join(p, inner, keySelector, resultSelector);
+        });
+    }
+
+    public <TI, TK, TR> NQuery<TR> join(Collection<TI> inner, Function<T, TK> outerKeySelector,
+                                        Function<TI, TK> innerKeySelector, BiFunction<T, TI, TR> resultSelector) {
+        require(inner, outerKeySelector, innerKeySelector, resultSelector);
+
+        return me(p -> {
+            Map<TK, List<TI>> lookup = toLookup(inner, innerKeySelector);
+            return p.flatMap(t -> {
+                List<TI> matches = lookup.get(outerKeySelector.apply(t));
+                if (matches == null) {
+                    return Stream.empty();
+                }
+                return matches.stream().map(p2 -> resultSelector.apply(t, p2));
+            });
+        });
+    }
+
+    public <TI, TK, TR> NQuery<TR> groupJoin(Collection<TI> inner, Function<T, TK> outerKeySelector,
+                                             Function<TI, TK> innerKeySelector,
+                                             BiFunction<T, NQuery<TI>, TR> resultSelector) {
+        require(inner, outerKeySelector, innerKeySelector, resultSelector);
+
+        return me(p -> {
+            Map<TK, List<TI>> lookup = toLookup(inner, innerKeySelector);
+            return p.map(t -> resultSelector.apply(t,
+                    of(isNull(lookup.get(outerKeySelector.apply(t)), Collections.emptyList()))));
+        });
+    }
+
+    /**
+     * Outer rows without a match are yielded once with a null inner.
+     */
+    public <TI, TK, TR> NQuery<TR> leftJoin(Collection<TI> inner, Function<T, TK> outerKeySelector,
+                                            Function<TI, TK> innerKeySelector, BiFunction<T, TI, TR> resultSelector) {
+        require(inner, outerKeySelector, innerKeySelector, resultSelector);
+
+        return me(p -> {
+            Map<TK, List<TI>> lookup = toLookup(inner, innerKeySelector);
+            return p.flatMap(t -> {
+                List<TI> matches = lookup.get(outerKeySelector.apply(t));
+                if (matches == null) {
+                    return Stream.of(resultSelector.apply(t, null));
+                }
+                return matches.stream().map(p2 -> resultSelector.apply(t, p2));
+            });
+        });
+    }
+
+    /**
+     * Built once per run and only read afterwards, so a plain HashMap is safe for parallel probes. Null keys never
+     * match, same as a SQL equi-join.
+     */
+    private static <TI, TK> Map<TK, List<TI>> toLookup(Collection<TI> inner, Function<TI, TK> keySelector) {
+        Map<TK, List<TI>> lookup = new HashMap<>();
+        for (TI item : inner) {
+            TK key = keySelector.apply(item);
+            if (key == null) {
+                continue;
+            }
+            lookup.computeIfAbsent(key, p -> new ArrayList<>(1)).add(item);
+        }
+        return lookup;
     }
 
     public boolean all(Predicate<T> predicate) {
-        return stream().allMatch(predicate);
+        return terminal(p -> p.allMatch(predicate));
     }
 
     public boolean any() {
-        return stream().findAny().isPresent();
+        if (pipeline == null) {
+            return !current.isEmpty();
+        }
+        return terminal(p -> p.findAny().isPresent());
     }
 
     public boolean any(Predicate<T> predicate) {
-        return stream().anyMatch(predicate);
+        return terminal(p -> p.anyMatch(predicate));
     }
 
     public boolean contains(T item) {
-        return stream().anyMatch(p -> p.equals(item));
+        return terminal(p -> p.anyMatch(t -> t.equals(item)));
     }
 
     public NQuery<T> concat(Iterable<T> set) {
-        return concat(App.asList(set));
+        require(set);
+
+        return me(p -> Stream.concat(p, StreamSupport.stream(set.spliterator(), isParallel)));
     }
 
     public NQuery<T> concat(Collection<T> set) {
-        return me(Stream.concat(stream(), newStream(set)));
+        return concat((Iterable<T>) set);
     }
 
     public NQuery<T> distinct() {
-        return me(stream().distinct());
+        return me(p -> p.distinct());
     }
 
     public NQuery<T> except(Iterable<T> set) {
-        return except(App.asList(set));
+        require(set);
+
+        return me(p -> {
+            Set<T> exclusions = toHashSet(set);
+            return p.filter(t -> !exclusions.contains(t));
+        });
     }
 
     public NQuery<T> except(Collection<T> set) {
-        return me(stream().filter(p -> !newStream(set).anyMatch(p2 -> p2.equals(p))));
+        return except((Iterable<T>) set);
     }
 
     public NQuery<T> intersect(Iterable<T> set) {
-        return intersect(App.asList(set));
+        require(set);
+
+        return me(p -> {
+            Set<T> inclusions = toHashSet(set);
+            return p.filter(inclusions::contains);
+        });
     }
 
     public NQuery<T> intersect(Collection<T> set) {
-        return me(stream().filter(p -> newStream(set).anyMatch(p2 -> p2.equals(p))));
+        return intersect((Iterable<T>) set);
+    }
+
+    private static <T> Set<T> toHashSet(Iterable<T> set) {
+        if (set instanceof Collection) {
+            return new HashSet<>((Collection<T>) set);
+        }
+        Set<T> result = new HashSet<>();
+        set.forEach(result::add);
+        return result;
     }
 
     public NQuery<T> union(Iterable<T> set) {
-        return union(App.asList(set));
+        return concat(set);
     }
 
     public NQuery<T> union(Collection<T> set) {
@@ -262,37 +620,54 @@ public final class NQuery<T> implements Iterable<T> {
     }
 
     public <TK> NQuery<T> orderBy(Function<T, TK> keySelector) {
-        return me(stream().sorted(getComparator(keySelector)));
-    }
-
-    private <TK> Comparator<T> getComparator(Function<T, TK> keySelector) {
-        return (p1, p2) -> {
-            Comparable c1 = as(keySelector.apply(p1), Comparable.class);
-            if (c1 == null) {
-                return 0;
-            }
-            return c1.compareTo(keySelector.apply(p2));
-        };
+        return sort(p -> new Object[] { keySelector.apply(p) }, false);
     }
 
     public <TK> NQuery<T> orderByDescending(Function<T, TK> keySelector) {
-        return me(stream().sorted(getComparator(keySelector).reversed()));
+        return sort(p -> new Object[] { keySelector.apply(p) }, true);
     }
 
     public NQuery<T> orderByMany(Function<T, Object[]> keySelector) {
-        return me(stream().sorted(getComparatorMany(keySelector)));
+        return sort(keySelector, false);
+    }
+
+    public NQuery<T> orderByDescendingMany(Function<T, Object[]> keySelector) {
+        return sort(keySelector, true);
+    }
+
+    /**
+     * The n elements with the greatest keys in descending order, kept in a bounded heap so it costs O(N log n)
+     * instead of a full sort. A lazy orderBy(..).take(n) runs the same way, an eager orderBy sorts at once.
+     */
+    public <TK> NQuery<T> topK(int count, Function<T, TK> keySelector) {
+        require(keySelector);
+
+        Function<T, Object[]> keys = p -> new Object[] { keySelector.apply(p) };
+        return me(p -> topK(p, keys, getComparator(true), count));
+    }
+
+    /**
+     * Decorate-sort-undecorate, key selectors run once per element rather than twice per comparison. A lazy sort
+     * keeps its spec so a following take(n) can switch to topK, an eager sort runs at once as it always did.
+     */
+    private NQuery<T> sort(Function<T, Object[]> keySelector, boolean descending) {
+        Comparator<Keyed<T>> comparator = getComparator(descending);
+        NQuery<T> q = me(p -> p.map(t -> new Keyed<>(keySelector.apply(t), t, 0)).sorted(comparator).map(t -> t.item));
+        if (q.pipeline != null) {
+            q.sortSpec = Tuple.of(keySelector, comparator);
+            q.sortUpstream = pipeline;
+        }
+        return q;
     }
 
-    private Comparator<T> getComparatorMany(Function<T, Object[]> keySelector) {
-        return (p1, p2) -> {
-            Object[] k1s = keySelector.apply(p1);
-            Object[] k2s = keySelector.apply(p2);
-            for (int i = 0; i < k1s.length; i++) {
-                Comparable c1 = as(k1s[i], Comparable.class);
-                if (c1 == null) {
+    private static <T> Comparator<Keyed<T>> getComparator(boolean descending) {
+        Comparator<Keyed<T>> comparator = (p1, p2) -> {
+            for (int i = 0; i < p1.keys.length; i++) {
+                Object k1 = p1.keys[i];
+                if (!(k1 instanceof Comparable)) {
                     continue;
                 }
-                int r = c1.compareTo(k2s[i]);
+                int r = ((Comparable) k1).compareTo(p2.keys[i]);
                 if (r == 0) {
                     continue;
                 }
@@ -300,55 +675,148 @@ public final class NQuery<T> implements Iterable<T> {
             }
             return 0;
         };
+        return descending ? comparator.reversed() : comparator;
     }
 
-    public NQuery<T> orderByDescendingMany(Function<T, Object[]> keySelector) {
-        return me(stream().sorted(getComparatorMany(keySelector).reversed()));
+    private static <T> Stream<T> topK(Stream<T> stream, Function<T, Object[]> keySelector,
+                                      Comparator<Keyed<T>> comparator, int count) {
+        if (count <= 0) {
+            return Stream.empty();
+        }
+
+        //index breaks ties so the result keeps the same order as a stable sort
+        Comparator<Keyed<T>> order = comparator.thenComparingLong(p -> p.index);
+        PriorityQueue<Keyed<T>> heap = new PriorityQueue<>(Math.min(count, 1024), order.reversed());
+        long[] counter = new long[1];
+        try (Stream<T> source = stream) {
+            source.forEachOrdered(t -> {
+                Keyed<T> keyed = new Keyed<>(keySelector.apply(t), t, counter[0]++);
+                if (heap.size() < count) {
+                    heap.offer(keyed);
+                    return;
+                }
+                if (order.compare(keyed, heap.peek()) < 0) {
+                    heap.poll();
+                    heap.offer(keyed);
+                }
+            });
+        }
+        List<Keyed<T>> result = new ArrayList<>(heap);
+        result.sort(order);
+        return result.stream().map(p -> p.item);
+    }
+
+    private static final class Keyed<T> {
+        final Object[] keys;
+        final T        item;
+        final long     index;
+
+        Keyed(Object[] keys, T item, long index) {
+            this.keys = keys;
+            this.item = item;
+            this.index = index;
+        }
     }
 
     public NQuery<T> reverse() {
-        return me(stream().sorted((Comparator<T>) ReverseOrder));
+        List<T> list = indexed();
+        if (list != null) {
+            return me(Lists.reverse(list));
+        }
+        return defer(() -> Lists.reverse(toList()));
     }
 
     public <TK, TR> NQuery<TR> groupBy(Function<T, TK> keySelector, Function<Tuple<TK, NQuery<T>>, TR> resultSelector) {
-        Map<TK, List<T>> map = newMap();
-        stream().forEach(t -> map.computeIfAbsent(keySelector.apply(t), p -> newList()).add(t));
-        List<TR> result = newList();
-        for (Map.Entry<TK, List<T>> entry : map.entrySet()) {
-            result.add(resultSelector.apply(Tuple.of(entry.getKey(), of(entry.getValue()))));
+        return defer(() -> {
+            Map<TK, List<T>> map = group(keySelector);
+            List<TR> result = new ArrayList<>(map.size());
+            for (Map.Entry<TK, List<T>> entry : map.entrySet()) {
+                result.add(resultSelector.apply(Tuple.of(entry.getKey(), of(entry.getValue()))));
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Parallel mode groups every leaf into its own map and merges them in leaf order, so group members keep their
+     * source order.
+     */
+    private <TK> Map<TK, List<T>> group(Function<T, TK> keySelector) {
+        Map<TK, List<T>> map = new HashMap<>();
+        if (!isParallel) {
+            return terminal(s -> {
+                s.forEach(t -> map.computeIfAbsent(keySelector.apply(t), p -> new ArrayList<>()).add(t));
+                return map;
+            });
         }
-        return me(result);
+
+        List<Map<TK, List<T>>> parts = getEngine().run(snapshot(), HashMap::new,
+                (p, t, i) -> p.computeIfAbsent(keySelector.apply(t), k -> new ArrayList<>()).add(t));
+        for (Map<TK, List<T>> part : parts) {
+            for (Map.Entry<TK, List<T>> entry : part.entrySet()) {
+                map.computeIfAbsent(entry.getKey(), p -> new ArrayList<>()).addAll(entry.getValue());
+            }
+        }
+        return map;
     }
 
     public <TR> NQuery<TR> groupByMany(Function<T, Object[]> keySelector,
                                        Function<Tuple<Object[], NQuery<T>>, TR> resultSelector) {
-        Map<String, Tuple<Object[], List<T>>> map = newMap();
-        stream().forEach(t -> {
-            Object[] ks = keySelector.apply(t);
-            map.computeIfAbsent(toJsonString(ks), p -> Tuple.of(ks, newList())).right.add(t);
+        return defer(() -> {
+            Map<CompositeKey, List<T>> map = group(p -> CompositeKey.of(keySelector.apply(p)));
+            List<TR> result = new ArrayList<>(map.size());
+            for (Map.Entry<CompositeKey, List<T>> entry : map.entrySet()) {
+                result.add(resultSelector.apply(Tuple.of(entry.getKey().getKeys(), of(entry.getValue()))));
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Aggregates every group with a downstream collector (Collectors.counting(), summingDouble, minBy, maxBy,
+     * toList...) instead of building a NQuery per group. Groups are built like the other overloads, so a null key
+     * is a group of its own.
+     */
+    public <TK, TA, TD, TR> NQuery<TR> groupBy(Function<T, TK> keySelector, Collector<T, TA, TD> downstream,
+                                               BiFunction<TK, TD, TR> resultSelector) {
+        require(keySelector, downstream, resultSelector);
+
+        return defer(() -> {
+            Map<TK, List<T>> map = group(keySelector);
+            List<TR> result = new ArrayList<>(map.size());
+            for (Map.Entry<TK, List<T>> entry : map.entrySet()) {
+                result.add(resultSelector.apply(entry.getKey(), entry.getValue().stream().collect(downstream)));
+            }
+            return result;
         });
-        List<TR> result = newList();
-        for (Tuple<Object[], List<T>> entry : map.values()) {
-            result.add(resultSelector.apply(Tuple.of(entry.left, of(entry.right))));
-        }
-        return me(result);
+    }
+
+    public <TA, TD, TR> NQuery<TR> groupByMany(Function<T, Object[]> keySelector, Collector<T, TA, TD> downstream,
+                                               BiFunction<Object[], TD, TR> resultSelector) {
+        require(keySelector, downstream, resultSelector);
+
+        return groupBy(p -> CompositeKey.of(keySelector.apply(p)), downstream,
+                (k, v) -> resultSelector.apply(k.getKeys(), v));
     }
 
     public Double average(ToDoubleFunction<T> selector) {
-        OptionalDouble q = stream().mapToDouble(selector).average();
+        OptionalDouble q = terminal(p -> p.mapToDouble(selector).average());
         return q.isPresent() ? q.getAsDouble() : null;
     }
 
     public int count() {
+        if (pipeline != null) {
+            return terminal(p -> (int) p.count());
+        }
         return current.size();
     }
 
     public int count(Predicate<T> predicate) {
-        return (int) stream().filter(predicate).count();
+        return terminal(p -> (int) p.filter(predicate).count());
     }
 
     public T max() {
-        return max(stream());
+        return terminal(this::max);
     }
 
     private <TR> TR max(Stream<TR> stream) {
@@ -356,11 +824,11 @@ public final class NQuery<T> implements Iterable<T> {
     }
 
     public <TR> TR max(Function<T, TR> selector) {
-        return max(stream().map(selector));
+        return terminal(p -> max(p.map(selector)));
     }
 
     public T min() {
-        return min(stream());
+        return terminal(this::min);
     }
 
     private <TR> TR min(Stream<TR> stream) {
@@ -368,15 +836,22 @@ public final class NQuery<T> implements Iterable<T> {
     }
 
     public <TR> TR min(Function<T, TR> selector) {
-        return min(stream().map(selector));
+        return terminal(p -> min(p.map(selector)));
     }
 
     public double sum(ToDoubleFunction<T> selector) {
-        return stream().mapToDouble(selector).sum();
+        return terminal(p -> p.mapToDouble(selector).sum());
     }
 
     public T first() {
-        return stream().findFirst().get();
+        if (pipeline == null) {
+            Iterator<T> tor = current.iterator();
+            if (!tor.hasNext()) {
+                throw new NoSuchElementException("No value present");
+            }
+            return tor.next();
+        }
+        return terminal(p -> p.findFirst()).get();
     }
 
     public T first(Predicate<T> predicate) {
@@ -384,7 +859,11 @@ public final class NQuery<T> implements Iterable<T> {
     }
 
     public T firstOrDefault() {
-        return stream().findFirst().orElse(null);
+        if (pipeline == null) {
+            Iterator<T> tor = current.iterator();
+            return tor.hasNext() ? tor.next() : null;
+        }
+        return terminal(p -> p.findFirst()).orElse(null);
     }
 
     public T firstOrDefault(Predicate<T> predicate) {
@@ -392,7 +871,14 @@ public final class NQuery<T> implements Iterable<T> {
     }
 
     public T last() {
-        return Streams.findLast(stream()).get();
+        List<T> list = indexed();
+        if (list != null) {
+            if (list.isEmpty()) {
+                throw new NoSuchElementException("No value present");
+            }
+            return list.get(list.size() - 1);
+        }
+        return terminal(Streams::findLast).get();
     }
 
     public T last(Predicate<T> predicate) {
@@ -400,7 +886,11 @@ public final class NQuery<T> implements Iterable<T> {
     }
 
     public T lastOrDefault() {
-        return Streams.findLast(stream()).orElse(null);
+        List<T> list = indexed();
+        if (list != null) {
+            return list.isEmpty() ? null : list.get(list.size() - 1);
+        }
+        return terminal(Streams::findLast).orElse(null);
     }
 
     public T lastOrDefault(Predicate<T> predicate) {
@@ -409,11 +899,12 @@ public final class NQuery<T> implements Iterable<T> {
 
     @ErrorCode(messageKeys = { "$count" })
     public T single() {
-        int count = count();
+        Collection<T> set = pipeline != null ? toList() : current;
+        int count = set.size();
         if (count != 1) {
             throw new SystemException(values(count));
         }
-        return first();
+        return set.iterator().next();
     }
 
     public T single(Predicate<T> predicate) {
@@ -422,11 +913,12 @@ public final class NQuery<T> implements Iterable<T> {
 
     @ErrorCode(messageKeys = { "$count" })
     public T singleOrDefault() {
-        int count = count();
+        Collection<T> set = pipeline != null ? toList() : current;
+        int count = set.size();
         if (count > 1) {
             throw new SystemException(values(count));
         }
-        return firstOrDefault();
+        return count == 0 ? null : set.iterator().next();
     }
 
     public T singleOrDefault(Predicate<T> predicate) {
@@ -434,7 +926,11 @@ public final class NQuery<T> implements Iterable<T> {
     }
 
     public NQuery<T> skip(int count) {
-        return me(stream().skip(count));
+        List<T> list = indexed();
+        if (list != null) {
+            return me(list.subList(Math.min(Math.max(count, 0), list.size()), list.size()));
+        }
+        return me(p -> p.skip(count));
     }
 
     public NQuery<T> skipWhile(Predicate<T> predicate) {
@@ -442,23 +938,34 @@ public final class NQuery<T> implements Iterable<T> {
     }
 
     public NQuery<T> skipWhile(IndexPredicate<T> predicate) {
-        AtomicBoolean doAccept = new AtomicBoolean();
-        return me((p, i) -> {
-            int flags = EachFunc.None;
-            if (doAccept.get()) {
-                flags |= EachFunc.Accept;
+        return me(s -> {
+            AtomicBoolean doAccept = new AtomicBoolean();
+            return each(s, (p, i) -> {
+                int flags = EachFunc.None;
+                if (doAccept.get()) {
+                    flags |= EachFunc.Accept;
+                    return flags;
+                }
+                if (!predicate.test(p, i)) {
+                    doAccept.set(true);
+                    flags |= EachFunc.Accept;
+                }
                 return flags;
-            }
-            if (!predicate.test(p, i)) {
-                doAccept.set(true);
-                flags |= EachFunc.Accept;
-            }
-            return flags;
+            });
         });
     }
 
     public NQuery<T> take(int count) {
-        return me(stream().limit(count));
+        if (sortSpec != null) {
+            Tuple<Function<T, Object[]>, Comparator<Keyed<T>>> spec = sortSpec;
+            Supplier<Stream<T>> upstream = sortUpstream;
+            return me(() -> topK(upstream.get(), spec.left, spec.right, count));
+        }
+        List<T> list = indexed();
+        if (list != null) {
+            return me(list.subList(0, Math.min(Math.max(count, 0), list.size())));
+        }
+        return me(p -> p.limit(count));
     }
 
     public NQuery<T> takeWhile(Predicate<T> predicate) {
@@ -466,7 +973,7 @@ public final class NQuery<T> implements Iterable<T> {
     }
 
     public NQuery<T> takeWhile(IndexPredicate<T> predicate) {
-        return me((p, i) -> {
+        return me(s -> each(s, (p, i) -> {
             int flags = EachFunc.None;
             if (!predicate.test(p, i)) {
                 flags |= EachFunc.Break;
@@ -474,10 +981,13 @@ public final class NQuery<T> implements Iterable<T> {
             }
             flags |= EachFunc.Accept;
             return flags;
-        });
+        }));
     }
 
     public Collection<T> asCollection() {
+        if (pipeline != null) {
+            return toList();
+        }
         return current;
     }
 
@@ -489,15 +999,17 @@ public final class NQuery<T> implements Iterable<T> {
     }
 
     public List<T> toList() {
-        List<T> result = newList();
-        result.addAll(current);
-        return result;
+        if (pipeline != null) {
+            return terminal(p -> p.collect(Collectors.toCollection(ArrayList::new)));
+        }
+        return new ArrayList<>(current);
     }
 
     public Set<T> toSet() {
-        Set<T> result = newSet();
-        result.addAll(current);
-        return result;
+        if (pipeline != null) {
+            return terminal(p -> p.collect(Collectors.toCollection(HashSet::new)));
+        }
+        return new HashSet<>(current);
     }
 
     public <TK> Map<TK, T> toMap(Function<T, TK> keySelector) {
@@ -505,8 +1017,7 @@ public final class NQuery<T> implements Iterable<T> {
     }
 
     public <TK, TR> Map<TK, TR> toMap(Function<T, TK> keySelector, Function<T, TR> resultSelector) {
-        return isParallel ? stream().collect(Collectors.toConcurrentMap(keySelector, resultSelector))
-                : stream().collect(Collectors.toMap(keySelector, resultSelector));
+        return terminal(p -> p.collect(Collectors.toMap(keySelector, resultSelector)));
     }
 
     public static void main(String[] args) {
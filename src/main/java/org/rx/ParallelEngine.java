@@ -0,0 +1,113 @@
+package org.rx;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import static org.rx.Contract.isNull;
+
+/**
+ * Fork/join runner for parallel NQuery. The source is cut into fixed leaves of splitThreshold elements, every leaf
+ * fills its own accumulator with exact indexes and the accumulators come back in source order, so workers never
+ * share a lock or a counter.
+ */
+final class ParallelEngine {
+    @FunctionalInterface
+    interface LeafFunc<T, TA> {
+        void accept(TA accumulator, T item, int index);
+    }
+
+    @FunctionalInterface
+    interface SinkFunc<T, TR> {
+        void accept(T item, int index, Consumer<TR> sink);
+    }
+
+    private static final class LeafTask<T, TA> extends RecursiveAction {
+        private final List<T>         source;
+        private final Supplier<TA>    supplier;
+        private final LeafFunc<T, TA> func;
+        private final int             threshold;
+        private final Object[]        parts;
+        private final int             lo, hi;
+
+        private LeafTask(List<T> source, Supplier<TA> supplier, LeafFunc<T, TA> func, int threshold, Object[] parts,
+                         int lo, int hi) {
+            this.source = source;
+            this.supplier = supplier;
+            this.func = func;
+            this.threshold = threshold;
+            this.parts = parts;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new LeafTask<>(source, supplier, func, threshold, parts, lo, mid),
+                        new LeafTask<>(source, supplier, func, threshold, parts, mid, hi));
+                return;
+            }
+            TA accumulator = supplier.get();
+            for (int i = lo * threshold, end = Math.min(i + threshold, source.size()); i < end; i++) {
+                func.accept(accumulator, source.get(i), i);
+            }
+            parts[lo] = accumulator;
+        }
+    }
+
+    private static final int MinSplitThreshold = 256;
+    private final ForkJoinPool pool;
+    private final int          splitThreshold;
+
+    public ParallelEngine(ForkJoinPool pool, int splitThreshold) {
+        this.pool = isNull(pool, ForkJoinPool.commonPool());
+        this.splitThreshold = splitThreshold;
+    }
+
+    private int getThreshold(int size) {
+        if (splitThreshold > 0) {
+            return splitThreshold;
+        }
+        return Math.max(size / (pool.getParallelism() << 2), MinSplitThreshold);
+    }
+
+    /**
+     * @param source random access list
+     * @return one accumulator per leaf in source order
+     */
+    public <T, TA> List<TA> run(List<T> source, Supplier<TA> supplier, LeafFunc<T, TA> func) {
+        int size = source.size(), threshold = getThreshold(size);
+        int leafCount = (size + threshold - 1) / threshold;
+        Object[] parts = new Object[leafCount];
+        LeafTask<T, TA> task = new LeafTask<>(source, supplier, func, threshold, parts, 0, leafCount);
+        if (leafCount == 1) {
+            task.compute();
+        } else if (leafCount > 1) {
+            pool.invoke(task);
+        }
+        return (List<TA>) Arrays.asList(parts);
+    }
+
+    public <T, TR> List<TR> flatMap(List<T> source, SinkFunc<T, TR> func) {
+        List<List<TR>> parts = run(source, ArrayList::new, (p, t, i) -> func.accept(t, i, p::add));
+        int size = 0;
+        for (List<TR> part : parts) {
+            size += part.size();
+        }
+        List<TR> result = new ArrayList<>(size);
+        for (List<TR> part : parts) {
+            result.addAll(part);
+        }
+        return result;
+    }
+
+    public <TR> TR submit(Supplier<TR> func) {
+        return pool.submit(func::get).join();
+    }
+}
@@ -0,0 +1,62 @@
+package org.rx;
+
+import java.util.Arrays;
+
+import static org.rx.Contract.require;
+import static org.rx.Contract.values;
+
+/**
+ * Shared part of IntQuery, LongQuery and DoubleQuery, the order statistics run over the values widened to double.
+ */
+abstract class PrimitiveQuery {
+    private volatile double[] sorted;
+
+    public abstract int count();
+
+    public boolean any() {
+        return count() > 0;
+    }
+
+    /**
+     * A new array, widening to double keeps the order of the values.
+     */
+    abstract double[] toDoubleArray();
+
+    /**
+     * Linear interpolation between the closest ranks, the sorted copy is kept for following calls.
+     *
+     * @param percent 0 to 100
+     */
+    public double percentile(double percent) {
+        require(percent, percent >= 0 && percent <= 100);
+        checkAny();
+
+        //published only once sorted, concurrent first calls may both sort
+        double[] sorted = this.sorted;
+        if (sorted == null) {
+            sorted = toDoubleArray();
+            Arrays.sort(sorted);
+            this.sorted = sorted;
+        }
+        double rank = percent / 100 * (sorted.length - 1);
+        int lower = (int) rank;
+        if (lower == sorted.length - 1) {
+            return sorted[lower];
+        }
+        return sorted[lower] + (rank - lower) * (sorted[lower + 1] - sorted[lower]);
+    }
+
+    /**
+     * @param searchResult Arrays.binarySearch of the value in the bucket bounds
+     */
+    static int bucketOf(int searchResult) {
+        return searchResult >= 0 ? searchResult + 1 : -searchResult - 1;
+    }
+
+    @ErrorCode
+    void checkAny() {
+        if (count() == 0) {
+            throw new SystemException(values());
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.rx.bean;
+
+import java.util.Arrays;
+
+import static org.rx.Contract.require;
+
+/**
+ * Multi-column hash key, the hash is computed once so map probes only pay for equals on collisions.
+ */
+public final class CompositeKey {
+    public static CompositeKey of(Object... keys) {
+        require(keys);
+
+        return new CompositeKey(keys);
+    }
+
+    private final Object[] keys;
+    private final int      hash;
+
+    public Object[] getKeys() {
+        return keys;
+    }
+
+    public Object get(int index) {
+        return keys[index];
+    }
+
+    public int size() {
+        return keys.length;
+    }
+
+    private CompositeKey(Object[] keys) {
+        this.keys = keys;
+        hash = Arrays.deepHashCode(keys);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof CompositeKey)) {
+            return false;
+        }
+        CompositeKey other = (CompositeKey) obj;
+        return hash == other.hash && Arrays.deepEquals(keys, other.keys);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.deepToString(keys);
+    }
+}
@@ -6,8 +6,16 @@ import java.util.Map;
 
 public final class Const {
     public interface SettingNames {
-        String JsonSkipTypes  = "app.jsonSkipTypes";
-        String ErrorCodeFiles = "app.errorCodeFiles";
+        String JsonSkipTypes          = "app.jsonSkipTypes";
+        String ErrorCodeFiles         = "app.errorCodeFiles";
+        String CacheMaxWeight         = "app.cache.maxWeight";
+        String CacheExpireAfterWrite  = "app.cache.expireAfterWrite";
+        String CacheExpireAfterAccess = "app.cache.expireAfterAccess";
+        String CacheRefreshAfterWrite = "app.cache.refreshAfterWrite";
+        String CacheMaxStaleness      = "app.cache.maxStaleness";
+        String CacheMappedFile        = "app.cache.mappedFile";
+        String CacheMappedCapacity    = "app.cache.mappedCapacity";
+        String CacheBoundedStore      = "app.cache.boundedStore";
     }
 
     public static final int      DefaultBufferSize;
@@ -0,0 +1,593 @@
+package org.rx.cache;
+
+import org.rx.App;
+import org.rx.Logger;
+import org.rx.SystemException;
+import org.rx.bean.Const;
+import org.rx.util.AsyncTask;
+
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.ToIntBiFunction;
+
+import static org.rx.Contract.require;
+
+/**
+ * Size and time bounded cache with segmented LRU eviction. New entries enter the probation segment and are promoted
+ * to the protected segment (80% of maxWeight) on their second hit, so one-hit scans cannot flush the hot set.
+ * Reads are lock free, the LRU order is updated with tryLock and skipped under contention.
+ * <p>
+ * With refreshAfterWrite an entry loaded by getOrAdd is served stale past its refresh age while one background
+ * reload runs on AsyncTask, a failed reload keeps the old value until maxStaleness.
+ * <p>
+ * A second level CacheStore is consulted on a miss and written through on every load. Its values keep their original
+ * write time so expireAfterWrite and maxStaleness still apply after L1 dropped them or the process restarted, entries
+ * expired in L1 are removed from it as well.
+ */
+public class BoundedCache<TK, TV> {
+    /**
+     * In-flight load, remembers the loading thread to catch a supplier that reads its own key.
+     */
+    private static final class Loading<TV> extends CompletableFuture<TV> {
+        private final Thread thread = Thread.currentThread();
+    }
+
+    private static final class Node<TK, TV> {
+        static final AtomicIntegerFieldUpdater<Node> Refreshing = AtomicIntegerFieldUpdater.newUpdater(Node.class,
+                "refreshing");
+        final TK                                      key;
+        final TV                                      value;
+        final int                                     weight;
+        final long                                    writeTime;
+        volatile long                                 accessTime, refreshTime;
+        volatile int                                  refreshing;
+        Function<TK, TV>                              loader;
+        boolean                                       isProtected, linked;
+        Node<TK, TV>                                  prev, next;
+
+        Node(TK key, TV value, int weight, long now) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            writeTime = accessTime = refreshTime = now;
+        }
+    }
+
+    /**
+     * Circular list with a sentinel, head.next is the most recently used node.
+     */
+    private static final class Segment<TK, TV> {
+        final Node<TK, TV> head = new Node<>(null, null, 0, 0);
+        long               weight;
+
+        Segment() {
+            head.prev = head.next = head;
+        }
+
+        void addFirst(Node<TK, TV> node) {
+            node.next = head.next;
+            node.prev = head;
+            head.next.prev = node;
+            head.next = node;
+            weight += node.weight;
+        }
+
+        void remove(Node<TK, TV> node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = node.next = null;
+            weight -= node.weight;
+        }
+
+        Node<TK, TV> last() {
+            return head.prev == head ? null : head.prev;
+        }
+    }
+
+    private static final int                   DefaultMaxWeight = 10000;
+    private static BoundedCache<String, Object> instance;
+
+    public static BoundedCache<String, Object> getInstance() {
+        if (instance == null) {
+            synchronized (BoundedCache.class) {
+                if (instance == null) {
+                    BoundedCache<String, Object> cache = new BoundedCache<>(readLong(
+                            Const.SettingNames.CacheMaxWeight, DefaultMaxWeight));
+                    cache.setExpireAfterAccess(readLong(Const.SettingNames.CacheExpireAfterAccess, 0));
+                    cache.setExpireAfterWrite(readLong(Const.SettingNames.CacheExpireAfterWrite, 0));
+                    cache.setRefreshAfterWrite(readLong(Const.SettingNames.CacheRefreshAfterWrite, 0));
+                    cache.setMaxStaleness(readLong(Const.SettingNames.CacheMaxStaleness, 0));
+                    Object mappedFile = App.readSetting(Const.SettingNames.CacheMappedFile);
+                    if (mappedFile != null) {
+                        cache.setSecondLevel(new MappedCache(Paths.get(String.valueOf(mappedFile)), (int) readLong(
+                                Const.SettingNames.CacheMappedCapacity, MappedCache.DefaultCapacity)));
+                    }
+                    instance = cache;
+                }
+            }
+        }
+        return instance;
+    }
+
+    private static long readLong(String key, long defaultValue) {
+        Object val = App.readSetting(key);
+        return val == null ? defaultValue : Long.parseLong(String.valueOf(val));
+    }
+
+    public static Object getOrStore(Class caller, String key, Function<String, Object> supplier) {
+        require(caller, key, supplier);
+
+        String k = App.cacheKey(caller.getName() + key);
+        return getInstance().getOrAdd(k, p -> supplier.apply(key));
+    }
+
+    private final ConcurrentMap<TK, Node<TK, TV>> container;
+    private final ConcurrentMap<TK, Loading<TV>>  loading;
+    private final ReentrantLock                   lock;
+    private final Segment<TK, TV>                 probation, protect;
+    private final long                            maxWeight;
+    private volatile ToIntBiFunction<TK, TV>      weigher;
+    private volatile CacheStore<TK, TV>           secondLevel;
+    private volatile long                         expireAfterWriteNanos, expireAfterAccessNanos;
+    private volatile long                         refreshAfterWriteNanos, maxStalenessNanos;
+    private final LongAdder                       hitCount, missCount, evictionCount, refreshCount,
+            refreshFailureCount;
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * @param weigher entry weight, default 1 so maxWeight is the max entry count
+     */
+    public void setWeigher(ToIntBiFunction<TK, TV> weigher) {
+        require(weigher);
+
+        this.weigher = weigher;
+    }
+
+    /**
+     * @param millis 0 means never
+     */
+    public void setExpireAfterWrite(long millis) {
+        require(millis, millis >= 0);
+
+        expireAfterWriteNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * @param millis 0 means never
+     */
+    public void setExpireAfterAccess(long millis) {
+        require(millis, millis >= 0);
+
+        expireAfterAccessNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * @param millis 0 means never, entries past it are served stale while reloading in background
+     */
+    public void setRefreshAfterWrite(long millis) {
+        require(millis, millis >= 0);
+
+        refreshAfterWriteNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * @param millis 0 means unlimited, entries older than it since the last successful load are not served
+     */
+    public void setMaxStaleness(long millis) {
+        require(millis, millis >= 0);
+
+        maxStalenessNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    public CacheStore<TK, TV> getSecondLevel() {
+        return secondLevel;
+    }
+
+    /**
+     * @param secondLevel null to detach
+     */
+    public void setSecondLevel(CacheStore<TK, TV> secondLevel) {
+        this.secondLevel = secondLevel;
+    }
+
+    public int size() {
+        return container.size();
+    }
+
+    public long getWeight() {
+        lock.lock();
+        try {
+            return probation.weight + protect.weight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    public long getRefreshCount() {
+        return refreshCount.sum();
+    }
+
+    public long getRefreshFailureCount() {
+        return refreshFailureCount.sum();
+    }
+
+    public double getHitRate() {
+        long hit = hitCount.sum(), total = hit + missCount.sum();
+        return total == 0 ? 1d : (double) hit / total;
+    }
+
+    public BoundedCache(long maxWeight) {
+        require(maxWeight, maxWeight > 0);
+
+        this.maxWeight = maxWeight;
+        container = new ConcurrentHashMap<>();
+        loading = new ConcurrentHashMap<>();
+        lock = new ReentrantLock();
+        probation = new Segment<>();
+        protect = new Segment<>();
+        weigher = (k, v) -> 1;
+        hitCount = new LongAdder();
+        missCount = new LongAdder();
+        evictionCount = new LongAdder();
+        refreshCount = new LongAdder();
+        refreshFailureCount = new LongAdder();
+    }
+
+    private boolean isExpired(Node<TK, TV> node, long now) {
+        return (expireAfterWriteNanos > 0 && now - node.writeTime >= expireAfterWriteNanos)
+                || (expireAfterAccessNanos > 0 && now - node.accessTime >= expireAfterAccessNanos)
+                || (maxStalenessNanos > 0 && now - node.writeTime >= maxStalenessNanos);
+    }
+
+    private Node<TK, TV> newNode(TK key, TV val, long now) {
+        int weight = weigher.applyAsInt(key, val);
+        require(weight, weight >= 0);
+
+        return new Node<>(key, val, weight, now);
+    }
+
+    public TV get(TK key) {
+        require(key);
+
+        Node<TK, TV> node = container.get(key);
+        if (node == null) {
+            missCount.increment();
+            return fromSecondLevel(key);
+        }
+        long now = System.nanoTime();
+        if (isExpired(node, now)) {
+            missCount.increment();
+            if (container.remove(key, node)) {
+                afterExpire(node);
+            }
+            return null;
+        }
+        hitCount.increment();
+        afterRead(node, now);
+        return node.value;
+    }
+
+    public void add(TK key, TV val) {
+        require(key, val);
+
+        Node<TK, TV> node = newNode(key, val, System.nanoTime());
+        Node<TK, TV> old = container.put(key, node);
+        afterWrite(node, old);
+        CacheStore<TK, TV> store = secondLevel;
+        if (store != null) {
+            store.add(key, val);
+        }
+    }
+
+    /**
+     * Concurrent misses on the same key share one supplier call, it runs outside the map so it may use the cache.
+     */
+    public TV getOrAdd(TK key, Function<TK, TV> supplier) {
+        require(key, supplier);
+
+        Node<TK, TV> node = container.get(key);
+        long now = System.nanoTime();
+        if (node != null && !isExpired(node, now)) {
+            hitCount.increment();
+            afterRead(node, now);
+            return node.value;
+        }
+        missCount.increment();
+        Loading<TV> future = new Loading<>(), inFlight = loading.putIfAbsent(key, future);
+        if (inFlight == null) {
+            loadNode(key, supplier, future);
+        } else {
+            checkReentrant(inFlight);
+            future = inFlight;
+        }
+        try {
+            return future.join();
+        } catch (CompletionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw SystemException.wrap(cause);
+        }
+    }
+
+    /**
+     * A supplier asking for its own key would wait on itself forever.
+     */
+    private static void checkReentrant(Loading<?> inFlight) {
+        if (inFlight.thread == Thread.currentThread()) {
+            throw new IllegalStateException("BoundedCache.getOrAdd: recursive load of the same key");
+        }
+    }
+
+    private void loadNode(TK key, Function<TK, TV> supplier, Loading<TV> future) {
+        try {
+            long now = System.nanoTime();
+            //a load may have finished between the miss and putIfAbsent
+            Node<TK, TV> current = container.get(key);
+            if (current != null && !isExpired(current, now)) {
+                future.complete(current.value);
+                return;
+            }
+            //an expired entry must not be reloaded from the second level
+            Node<TK, TV> node = current == null ? readSecondLevel(key, now) : null;
+            if (node == null) {
+                TV val = load(key, supplier);
+                if (val == null) {
+                    if (current != null) {
+                        if (container.remove(key, current)) {
+                            afterRemove(current);
+                        }
+                        removeSecondLevel(key);
+                    }
+                    future.complete(null);
+                    return;
+                }
+                node = newNode(key, val, System.nanoTime());
+            }
+            node.loader = supplier;
+            afterWrite(node, container.put(key, node));
+            future.complete(node.value);
+        } catch (Throwable ex) {
+            future.completeExceptionally(ex);
+        } finally {
+            loading.remove(key, future);
+        }
+    }
+
+    public void remove(TK key) {
+        require(key);
+
+        Node<TK, TV> node = container.remove(key);
+        if (node != null) {
+            afterRemove(node);
+        }
+        CacheStore<TK, TV> store = secondLevel;
+        if (store != null) {
+            store.remove(key);
+        }
+    }
+
+    private TV load(TK key, Function<TK, TV> supplier) {
+        TV val = supplier.apply(key);
+        CacheStore<TK, TV> store = secondLevel;
+        if (val != null && store != null) {
+            store.add(key, val);
+        }
+        return val;
+    }
+
+    /**
+     * The node carries the stored write time mapped onto nanoTime, a value already expired by it is removed.
+     */
+    private Node<TK, TV> readSecondLevel(TK key, long now) {
+        CacheStore<TK, TV> store = secondLevel;
+        long written;
+        TV val;
+        if (store == null || (written = store.getWriteTime(key)) == 0 || (val = store.get(key)) == null) {
+            return null;
+        }
+        long age = TimeUnit.MILLISECONDS.toNanos(Math.max(System.currentTimeMillis() - written, 0));
+        Node<TK, TV> node = newNode(key, val, now - age);
+        node.accessTime = now;
+        if (isExpired(node, now)) {
+            store.remove(key);
+            return null;
+        }
+        return node;
+    }
+
+    private void removeSecondLevel(TK key) {
+        CacheStore<TK, TV> store = secondLevel;
+        if (store != null) {
+            store.remove(key);
+        }
+    }
+
+    private TV fromSecondLevel(TK key) {
+        Node<TK, TV> node = readSecondLevel(key, System.nanoTime());
+        if (node == null) {
+            return null;
+        }
+        if (container.putIfAbsent(key, node) == null) {
+            afterWrite(node, null);
+        }
+        return node.value;
+    }
+
+    /**
+     * Clears the second level as well, otherwise cleared keys would come back from it on the next miss.
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            for (Node<TK, TV> node : container.values()) {
+                unlink(node);
+            }
+            container.clear();
+        } finally {
+            lock.unlock();
+        }
+        CacheStore<TK, TV> store = secondLevel;
+        if (store != null) {
+            store.clear();
+        }
+    }
+
+    /**
+     * Remove all expired entries, expired entries are otherwise dropped when read or evicted first when full.
+     */
+    public void cleanUp() {
+        long now = System.nanoTime();
+        for (Node<TK, TV> node : container.values()) {
+            if (isExpired(node, now) && container.remove(node.key, node)) {
+                afterExpire(node);
+            }
+        }
+    }
+
+    private void afterRead(Node<TK, TV> node, long now) {
+        node.accessTime = now;
+        if (refreshAfterWriteNanos > 0 && node.loader != null && now - node.refreshTime >= refreshAfterWriteNanos
+                && Node.Refreshing.compareAndSet(node, 0, 1)) {
+            AsyncTask.TaskFactory.run(() -> refresh(node), "BoundedCache.refresh");
+        }
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            if (!node.linked) {
+                return;
+            }
+            if (node.isProtected) {
+                protect.remove(node);
+                protect.addFirst(node);
+                return;
+            }
+            probation.remove(node);
+            node.isProtected = true;
+            protect.addFirst(node);
+            long protectMax = maxWeight * 4 / 5;
+            Node<TK, TV> demote;
+            while (protect.weight > protectMax && (demote = protect.last()) != null && demote != node) {
+                protect.remove(demote);
+                demote.isProtected = false;
+                probation.addFirst(demote);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void refresh(Node<TK, TV> node) {
+        try {
+            TV val = load(node.key, node.loader);
+            if (val != null) {
+                Node<TK, TV> newNode = newNode(node.key, val, System.nanoTime());
+                newNode.loader = node.loader;
+                if (container.replace(node.key, node, newNode)) {
+                    refreshCount.increment();
+                    afterWrite(newNode, node);
+                }
+                return;
+            }
+        } catch (Throwable ex) {
+            Logger.error(ex, "BoundedCache refresh %s", node.key);
+        }
+        //keep serving the old value, retry after another refresh period
+        refreshFailureCount.increment();
+        node.refreshTime = System.nanoTime();
+        node.refreshing = 0;
+    }
+
+    private void afterWrite(Node<TK, TV> node, Node<TK, TV> old) {
+        lock.lock();
+        try {
+            boolean wasProtected = false;
+            if (old != null) {
+                wasProtected = old.linked && old.isProtected;
+                unlink(old);
+            }
+            //a concurrent remove may have won, only link the node the map still holds
+            if (node != null && container.get(node.key) == node) {
+                node.linked = true;
+                node.isProtected = wasProtected;
+                (wasProtected ? protect : probation).addFirst(node);
+            }
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void afterRemove(Node<TK, TV> node) {
+        lock.lock();
+        try {
+            unlink(node);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void afterExpire(Node<TK, TV> node) {
+        afterRemove(node);
+        removeSecondLevel(node.key);
+    }
+
+    private void unlink(Node<TK, TV> node) {
+        if (!node.linked) {
+            return;
+        }
+        node.linked = false;
+        (node.isProtected ? protect : probation).remove(node);
+    }
+
+    private void evict() {
+        long now = System.nanoTime();
+        while (probation.weight + protect.weight > maxWeight) {
+            Segment<TK, TV> segment = probation.last() != null ? probation : protect;
+            Node<TK, TV> victim = segment.last();
+            //prefer an expired entry among the oldest few
+            Node<TK, TV> p = victim;
+            boolean expired = false;
+            for (int i = 0; i < 4 && p != segment.head; i++, p = p.prev) {
+                if (isExpired(p, now)) {
+                    victim = p;
+                    expired = true;
+                    break;
+                }
+            }
+            unlink(victim);
+            if (container.remove(victim.key, victim) && expired) {
+                removeSecondLevel(victim.key);
+            }
+            evictionCount.increment();
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package org.rx.cache;
+
+import org.rx.Logger;
+import org.rx.bean.Const;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.rx.Contract.require;
+
+/**
+ * Shared size-classed pool of byte[] and direct ByteBuffer. Each power of two class is a lock-free queue, so buffers
+ * may be released in any order and from any thread, short-lived virtual threads included, and are shared by all.
+ * <p>
+ * Every pooled segment is tracked by a weak reference, a segment collected without close() is logged and counted as
+ * a leak. Its memory is dropped rather than reused, since the array or a slice of the buffer may still be held
+ * outside the segment.
+ */
+public final class BufferPool {
+    private static final class SizeClass {
+        private final int                           size;
+        private final ConcurrentLinkedQueue<Object> queue;
+        private final AtomicInteger                 queueSize;
+
+        private SizeClass(int size) {
+            this.size = size;
+            queue = new ConcurrentLinkedQueue<>();
+            queueSize = new AtomicInteger();
+        }
+    }
+
+    private static final class LeakTracker extends WeakReference<AutoCloseable> {
+        private final Object    resource;
+        private final int       index;
+        private final Throwable allocStack;
+
+        private LeakTracker(AutoCloseable segment, Object resource, int index, ReferenceQueue<AutoCloseable> queue,
+                            boolean traceAlloc) {
+            super(segment, queue);
+            this.resource = resource;
+            this.index = index;
+            allocStack = traceAlloc ? new Throwable("Segment allocated here") : null;
+        }
+    }
+
+    private static final int                    MinShift = 8;
+    public static final BufferPool              Default  = new BufferPool(64 * 1024, 256);
+    private final int                           maxSize, maxPooledPerClass, classCount;
+    private final SizeClass[]                   classes;
+    private final ReferenceQueue<AutoCloseable> leakQueue;
+    private final Set<LeakTracker>              trackers;
+    private final LongAdder                     allocCount, missCount, releaseCount, leakCount;
+    private volatile boolean                    traceAlloc;
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Capture the allocation stack of every segment so a leak report shows where it came from.
+     */
+    public void setTraceAlloc(boolean traceAlloc) {
+        this.traceAlloc = traceAlloc;
+    }
+
+    public long getAllocCount() {
+        return allocCount.sum();
+    }
+
+    /**
+     * Allocations that had to create a new array.
+     */
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    public long getReleaseCount() {
+        return releaseCount.sum();
+    }
+
+    public long getLeakCount() {
+        expungeLeaks();
+        return leakCount.sum();
+    }
+
+    /**
+     * Pooled segments not closed yet.
+     */
+    public int getOutstandingCount() {
+        expungeLeaks();
+        return trackers.size();
+    }
+
+    /**
+     * Buffers waiting in the queues.
+     */
+    public int getPooledCount() {
+        int count = 0;
+        for (SizeClass sizeClass : classes) {
+            count += sizeClass.queueSize.get();
+        }
+        return count;
+    }
+
+    /**
+     * @param maxSize           largest pooled size, rounded up to a power of two, larger requests are not pooled
+     * @param maxPooledPerClass max idle arrays per size class
+     */
+    public BufferPool(int maxSize, int maxPooledPerClass) {
+        require(maxSize, maxSize >= 1 << MinShift);
+        require(maxPooledPerClass, maxPooledPerClass >= 0);
+
+        //heap classes first, then the direct classes
+        classCount = 32 - Integer.numberOfLeadingZeros(maxSize - 1) - MinShift + 1;
+        classes = new SizeClass[classCount * 2];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new SizeClass(1 << (i % classCount + MinShift));
+        }
+        this.maxSize = classes[classCount - 1].size;
+        this.maxPooledPerClass = maxPooledPerClass;
+        leakQueue = new ReferenceQueue<>();
+        trackers = ConcurrentHashMap.newKeySet();
+        allocCount = new LongAdder();
+        missCount = new LongAdder();
+        releaseCount = new LongAdder();
+        leakCount = new LongAdder();
+    }
+
+    private int classIndex(int size) {
+        if (size <= 1 << MinShift) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MinShift;
+    }
+
+    public BytesSegment alloc() {
+        return alloc(Const.DefaultBufferSize);
+    }
+
+    /**
+     * @return a segment of exactly size bytes, close() returns it to the pool
+     */
+    public BytesSegment alloc(int size) {
+        require(size, size > 0);
+
+        expungeLeaks();
+        allocCount.increment();
+        if (size > maxSize) {
+            missCount.increment();
+            return new BytesSegment(new byte[size]);
+        }
+
+        int index = classIndex(size);
+        byte[] array = (byte[]) poll(index);
+        if (array == null) {
+            array = new byte[classes[index].size];
+        }
+        BytesSegment segment = new BytesSegment(array, 0, size);
+        LeakTracker tracker = track(segment, array, index);
+        segment.Closed = p -> release(tracker);
+        return segment;
+    }
+
+    /**
+     * @return a direct segment whose buffer has exactly size bytes of capacity, close() returns it to the pool
+     */
+    public ByteBufferSegment allocDirect(int size) {
+        require(size, size > 0);
+
+        expungeLeaks();
+        allocCount.increment();
+        if (size > maxSize) {
+            missCount.increment();
+            return new ByteBufferSegment(ByteBuffer.allocateDirect(size));
+        }
+
+        int index = classCount + classIndex(size);
+        ByteBuffer buffer = (ByteBuffer) poll(index);
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(classes[index].size);
+        }
+        buffer.clear().limit(size);
+        ByteBufferSegment segment = new ByteBufferSegment(buffer.slice());
+        LeakTracker tracker = track(segment, buffer, index);
+        segment.Closed = p -> release(tracker);
+        return segment;
+    }
+
+    private Object poll(int index) {
+        SizeClass sizeClass = classes[index];
+        Object resource = sizeClass.queue.poll();
+        if (resource != null) {
+            sizeClass.queueSize.decrementAndGet();
+            return resource;
+        }
+        missCount.increment();
+        return null;
+    }
+
+    private LeakTracker track(AutoCloseable segment, Object resource, int index) {
+        LeakTracker tracker = new LeakTracker(segment, resource, index, leakQueue, traceAlloc);
+        trackers.add(tracker);
+        return tracker;
+    }
+
+    private void release(LeakTracker tracker) {
+        //a segment is closed once, the segment clears Closed before invoking it
+        if (!trackers.remove(tracker)) {
+            return;
+        }
+        tracker.clear();
+        releaseCount.increment();
+        recycle(tracker.resource, tracker.index);
+    }
+
+    private void recycle(Object resource, int index) {
+        SizeClass sizeClass = classes[index];
+        if (sizeClass.queueSize.incrementAndGet() > maxPooledPerClass) {
+            sizeClass.queueSize.decrementAndGet();
+            return;
+        }
+        sizeClass.queue.offer(resource);
+    }
+
+    private void expungeLeaks() {
+        LeakTracker tracker;
+        while ((tracker = (LeakTracker) leakQueue.poll()) != null) {
+            if (!trackers.remove(tracker)) {
+                continue;
+            }
+            leakCount.increment();
+            int size = classes[tracker.index].size;
+            if (tracker.allocStack != null) {
+                Logger.error(tracker.allocStack, "BufferPool leak: segment[%s] was not closed", size);
+            } else {
+                Logger.info("BufferPool leak: segment[%s] was not closed, enable traceAlloc to locate it", size);
+            }
+        }
+    }
+}
@@ -4,52 +4,43 @@ import java.util.function.Consumer;
 
 import static org.rx.Contract.require;
 
+/**
+ * @deprecated use BufferPool, segments are borrowed from BufferPool.Default and go back when closed or released
+ */
+@Deprecated
 public class BufferSegment {
-    private final byte[]     buffer;
     private final int        bufferSize;
-    private volatile int     offset;
     private volatile boolean autoReleased;
 
     public boolean isAutoReleased() {
         return autoReleased;
     }
 
+    /**
+     * Ignored, kept for compatibility. A segment goes back to the pool only when closed.
+     */
     public void setAutoReleased(boolean autoReleased) {
         this.autoReleased = autoReleased;
     }
 
+    /**
+     * @param bufferCount ignored, BufferPool.Default sizes its own queues
+     */
     public BufferSegment(int bufferSize, int bufferCount) {
-        require(bufferSize, bufferSize >= 0);
+        require(bufferSize, bufferSize > 0);
         require(bufferCount, bufferCount >= 0);
 
-        buffer = new byte[(this.bufferSize = bufferSize) * bufferCount];
+        this.bufferSize = bufferSize;
     }
 
     public BytesSegment alloc() {
-        if (offset == buffer.length) {
-            return new BytesSegment(new byte[bufferSize]);
-        }
-
-        synchronized (buffer) {
-            BytesSegment segment = new BytesSegment(buffer, offset, bufferSize);
-            offset += bufferSize;
-            if (autoReleased) {
-                segment.Closed = p -> release(p);
-            }
-            return segment;
-        }
+        return BufferPool.Default.alloc(bufferSize);
     }
 
     public void release(BytesSegment segment) {
         require(segment);
 
-        if (buffer != segment.array) {
-            return;
-        }
-
-        synchronized (buffer) {
-            offset -= segment.count;
-        }
+        segment.close();
     }
 
     public void accept(Consumer<BytesSegment> consumer) {
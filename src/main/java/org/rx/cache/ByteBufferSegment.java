@@ -0,0 +1,93 @@
+package org.rx.cache;
+
+import org.rx.SystemException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.Consumer;
+
+import static org.rx.Contract.require;
+
+/**
+ * ByteBuffer counterpart of BytesSegment, pooled direct segments come from BufferPool.allocDirect and go back on
+ * close() so channel I/O never copies through the heap.
+ */
+public final class ByteBufferSegment implements AutoCloseable {
+    private static final AtomicReferenceFieldUpdater<ByteBufferSegment, Consumer> ClosedUpdater;
+
+    static {
+        ClosedUpdater = AtomicReferenceFieldUpdater.newUpdater(ByteBufferSegment.class, Consumer.class, "Closed");
+    }
+
+    public volatile Consumer<ByteBufferSegment> Closed;
+    public final ByteBuffer                     buffer;
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public int getCapacity() {
+        return buffer.capacity();
+    }
+
+    public boolean isDirect() {
+        return buffer.isDirect();
+    }
+
+    public ByteBufferSegment(ByteBuffer buffer) {
+        require(buffer);
+
+        this.buffer = buffer;
+    }
+
+    /**
+     * Clears the buffer and reads once from the channel, the buffer is flipped for reading.
+     *
+     * @return bytes read or -1 at the end of stream
+     */
+    public int readFrom(ReadableByteChannel channel) {
+        require(channel);
+
+        buffer.clear();
+        try {
+            int read = channel.read(buffer);
+            buffer.flip();
+            return read;
+        } catch (IOException ex) {
+            throw SystemException.wrap(ex);
+        }
+    }
+
+    /**
+     * Writes all remaining bytes to a blocking channel.
+     *
+     * @return bytes written
+     */
+    public int writeTo(WritableByteChannel channel) {
+        require(channel);
+
+        int total = 0;
+        try {
+            while (buffer.hasRemaining()) {
+                total += channel.write(buffer);
+            }
+        } catch (IOException ex) {
+            throw SystemException.wrap(ex);
+        }
+        return total;
+    }
+
+    /**
+     * Invokes Closed once, later calls do nothing.
+     */
+    @Override
+    public void close() {
+        Consumer<ByteBufferSegment> closed = ClosedUpdater.getAndSet(this, null);
+        if (closed != null) {
+            closed.accept(this);
+        }
+    }
+}
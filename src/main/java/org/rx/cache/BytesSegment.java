@@ -1,13 +1,20 @@
 package org.rx.cache;
 
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.function.Consumer;
 
 import static org.rx.Contract.require;
 
 public final class BytesSegment implements AutoCloseable {
-    public Consumer<BytesSegment> Closed;
-    public final byte[]           array;
-    public final int              offset, count;
+    private static final AtomicReferenceFieldUpdater<BytesSegment, Consumer> ClosedUpdater;
+
+    static {
+        ClosedUpdater = AtomicReferenceFieldUpdater.newUpdater(BytesSegment.class, Consumer.class, "Closed");
+    }
+
+    public volatile Consumer<BytesSegment> Closed;
+    public final byte[]                    array;
+    public final int                       offset, count;
 
     public byte[] getArray() {
         return array;
@@ -35,10 +42,14 @@ public final class BytesSegment implements AutoCloseable {
         this.count = count;
     }
 
+    /**
+     * Invokes Closed once, later calls do nothing.
+     */
     @Override
     public void close() {
-        if (Closed != null) {
-            Closed.accept(this);
+        Consumer<BytesSegment> closed = ClosedUpdater.getAndSet(this, null);
+        if (closed != null) {
+            closed.accept(this);
         }
     }
 }
@@ -0,0 +1,20 @@
+package org.rx.cache;
+
+/**
+ * Second level store consulted by BoundedCache on a miss and written through on load.
+ */
+public interface CacheStore<TK, TV> {
+    TV get(TK key);
+
+    /**
+     * Wall clock millis when the stored value was written, 0 if absent. Read it before get() so a concurrent
+     * overwrite can only make the value look older.
+     */
+    long getWriteTime(TK key);
+
+    void add(TK key, TV val);
+
+    void remove(TK key);
+
+    void clear();
+}
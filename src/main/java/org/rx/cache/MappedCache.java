@@ -0,0 +1,296 @@
+package org.rx.cache;
+
+import org.rx.App;
+import org.rx.Disposable;
+import org.rx.ErrorCode;
+import org.rx.Logger;
+import org.rx.SystemException;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.rx.Contract.require;
+import static org.rx.Contract.values;
+
+/**
+ * Persistent cache tier on a memory-mapped file, a restarted JVM maps the previous file and serves hits at once.
+ * <p>
+ * Layout: header [magic, version, end] then append-only records [keyLength, valueLength, writeTime, key, value], a
+ * valueLength of -1 is a removal and writeTime is wall clock millis. The key index lives on the heap and is rebuilt
+ * by scanning the records on open, compact() slides the live records to the front when the file is full.
+ */
+public class MappedCache extends Disposable implements CacheStore<String, Object> {
+    private static final int           Magic = 0x52584D43, Version = 2, HeaderSize = 16, EndOffset = 8;
+    private static final int           RecordHeaderSize = 16, Tombstone = -1;
+    public static final int            DefaultCapacity = 64 * 1024 * 1024;
+    private final Path                 file;
+    private final RandomAccessFile     raf;
+    private final MappedByteBuffer     buffer;
+    private final Map<String, Integer> index;
+    private int                        end;
+
+    public Path getFile() {
+        return file;
+    }
+
+    public int getCapacity() {
+        return buffer.capacity();
+    }
+
+    public synchronized int getUsedBytes() {
+        return end;
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    public MappedCache(Path file) {
+        this(file, DefaultCapacity);
+    }
+
+    public MappedCache(Path file, int capacity) {
+        require(file);
+        require(capacity, capacity > HeaderSize);
+
+        this.file = file;
+        index = new HashMap<>();
+        boolean isNew;
+        try {
+            raf = new RandomAccessFile(file.toFile(), "rw");
+            isNew = raf.length() == 0;
+            long size = Math.max(raf.length(), capacity);
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException ex) {
+            throw SystemException.wrap(ex);
+        }
+        if (isNew) {
+            buffer.putInt(0, Magic);
+            buffer.putInt(4, Version);
+            setEnd(HeaderSize);
+            return;
+        }
+        checkHeader();
+        load();
+    }
+
+    @ErrorCode(messageKeys = { "$file" })
+    private void checkHeader() {
+        if (buffer.getInt(0) != Magic || buffer.getInt(4) != Version) {
+            freeUnmanaged();
+            throw new SystemException(values(file));
+        }
+    }
+
+    private void load() {
+        int limit = (int) Math.min(buffer.getLong(EndOffset), buffer.capacity()), pos = HeaderSize;
+        while (pos + RecordHeaderSize <= limit) {
+            int keyLength = buffer.getInt(pos), valueLength = buffer.getInt(pos + 4);
+            long next = (long) pos + RecordHeaderSize + keyLength + Math.max(valueLength, 0);
+            //torn write at the tail
+            if (keyLength < 0 || valueLength < Tombstone || next > limit) {
+                break;
+            }
+            String key = readKey(pos, keyLength);
+            if (valueLength == Tombstone) {
+                index.remove(key);
+            } else {
+                index.put(key, pos);
+            }
+            pos = (int) next;
+        }
+        end = pos;
+    }
+
+    @Override
+    protected synchronized void freeUnmanaged() {
+        index.clear();
+        try {
+            buffer.force();
+            raf.close();
+        } catch (IOException ex) {
+            Logger.error(ex, "MappedCache close %s", file);
+        }
+    }
+
+    public synchronized void flush() {
+        checkNotClosed();
+
+        buffer.force();
+    }
+
+    @Override
+    public Object get(String key) {
+        byte[] data = getBytes(key);
+        return data == null ? null : App.deserialize(data);
+    }
+
+    /**
+     * Only Serializable values are persisted, others are skipped.
+     */
+    @Override
+    public void add(String key, Object val) {
+        require(key, val);
+
+        if (!(val instanceof Serializable)) {
+            return;
+        }
+        byte[] data;
+        try {
+            data = App.serialize(val);
+        } catch (SystemException ex) {
+            Logger.debug("MappedCache skip %s: %s", key, ex.getMessage());
+            return;
+        }
+        addBytes(key, data);
+    }
+
+    @Override
+    public synchronized long getWriteTime(String key) {
+        require(key);
+        checkNotClosed();
+
+        Integer pos = index.get(key);
+        return pos == null ? 0 : buffer.getLong(pos + 8);
+    }
+
+    public synchronized byte[] getBytes(String key) {
+        require(key);
+        checkNotClosed();
+
+        Integer pos = index.get(key);
+        if (pos == null) {
+            return null;
+        }
+        int keyLength = buffer.getInt(pos), valueLength = buffer.getInt(pos + 4);
+        byte[] data = new byte[valueLength];
+        read(pos + RecordHeaderSize + keyLength, data);
+        return data;
+    }
+
+    /**
+     * @return false if the record does not fit even after compaction
+     */
+    public synchronized boolean addBytes(String key, byte[] value) {
+        require(key, value);
+        checkNotClosed();
+
+        return append(key, value);
+    }
+
+    @Override
+    public synchronized void remove(String key) {
+        require(key);
+        checkNotClosed();
+
+        //a full file keeps the old record, it comes back after a restart
+        if (index.containsKey(key) && !append(key, null)) {
+            index.remove(key);
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        checkNotClosed();
+
+        index.clear();
+        setEnd(HeaderSize);
+    }
+
+    /**
+     * Slides the live records to the front of the file and drops removals and overwritten values. The header claims
+     * an empty file while records move, a crash meanwhile loses the cache instead of exposing half moved records.
+     */
+    public synchronized void compact() {
+        checkNotClosed();
+
+        int oldEnd = end, pos = HeaderSize, writePos = HeaderSize;
+        buffer.putLong(EndOffset, HeaderSize);
+        buffer.force();
+        while (pos < oldEnd) {
+            int keyLength = buffer.getInt(pos), valueLength = buffer.getInt(pos + 4);
+            int length = RecordHeaderSize + keyLength + Math.max(valueLength, 0);
+            if (valueLength != Tombstone) {
+                String key = readKey(pos, keyLength);
+                Integer live = index.get(key);
+                if (live != null && live == pos) {
+                    if (writePos != pos) {
+                        move(pos, writePos, length);
+                        index.put(key, writePos);
+                    }
+                    writePos += length;
+                }
+            }
+            pos += length;
+        }
+        setEnd(writePos);
+    }
+
+    private boolean append(String key, byte[] value) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        int length = RecordHeaderSize + k.length + (value == null ? 0 : value.length);
+        if ((long) end + length > buffer.capacity()) {
+            compact();
+            if ((long) end + length > buffer.capacity()) {
+                return false;
+            }
+        }
+        int pos = end;
+        buffer.putInt(pos, k.length);
+        buffer.putInt(pos + 4, value == null ? Tombstone : value.length);
+        buffer.putLong(pos + 8, System.currentTimeMillis());
+        write(pos + RecordHeaderSize, k);
+        if (value == null) {
+            index.remove(key);
+        } else {
+            write(pos + RecordHeaderSize + k.length, value);
+            index.put(key, pos);
+        }
+        //the record is complete before end moves past it
+        setEnd(pos + length);
+        return true;
+    }
+
+    private void setEnd(int end) {
+        this.end = end;
+        buffer.putLong(EndOffset, end);
+    }
+
+    private String readKey(int pos, int keyLength) {
+        byte[] k = new byte[keyLength];
+        read(pos + RecordHeaderSize, k);
+        return new String(k, StandardCharsets.UTF_8);
+    }
+
+    private void read(int pos, byte[] dst) {
+        buffer.position(pos);
+        buffer.get(dst);
+    }
+
+    private void write(int pos, byte[] src) {
+        buffer.position(pos);
+        buffer.put(src);
+    }
+
+    private void move(int from, int to, int length) {
+        byte[] chunk = new byte[Math.min(length, 64 * 1024)];
+        for (int done = 0; done < length; ) {
+            int len = Math.min(chunk.length, length - done);
+            buffer.position(from + done);
+            buffer.get(chunk, 0, len);
+            buffer.position(to + done);
+            buffer.put(chunk, 0, len);
+            done += len;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package org.rx.cache;
+
+import org.rx.Disposable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.rx.Contract.require;
+
+/**
+ * Byte cache kept outside the heap. Values are split into fixed blocks of lazily allocated direct slabs, only the
+ * LRU index of block numbers lives on the heap, so GC never scans the payload. Reads copy out.
+ */
+public class OffHeapCache<TK> extends Disposable {
+    private static final class Entry {
+        private final int[] blocks;
+        private final int   length;
+
+        private Entry(int[] blocks, int length) {
+            this.blocks = blocks;
+            this.length = length;
+        }
+    }
+
+    public static final int                DefaultSlabSize = 4 * 1024 * 1024, DefaultBlockSize = 512;
+    private final int                      slabSize, blockSize, blocksPerSlab, maxSlabs;
+    private final List<ByteBuffer>         slabs;
+    private final LinkedHashMap<TK, Entry> index;
+    private int[]                          freeBlocks;
+    private int                            freeCount;
+    private long                           usedBytes, hitCount, missCount, evictionCount;
+
+    public long getCapacity() {
+        return (long) maxSlabs * slabSize;
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * Direct memory reserved by the slabs allocated so far.
+     */
+    public synchronized long getAllocatedBytes() {
+        return (long) slabs.size() * slabSize;
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public OffHeapCache(long maxBytes) {
+        this(maxBytes, DefaultSlabSize, DefaultBlockSize);
+    }
+
+    public OffHeapCache(long maxBytes, int slabSize, int blockSize) {
+        require(blockSize, blockSize > 0);
+        require(slabSize, slabSize >= blockSize && slabSize % blockSize == 0);
+        require(maxBytes, maxBytes >= slabSize);
+
+        this.slabSize = slabSize;
+        this.blockSize = blockSize;
+        blocksPerSlab = slabSize / blockSize;
+        maxSlabs = (int) Math.min(maxBytes / slabSize, Integer.MAX_VALUE / blocksPerSlab);
+        slabs = new ArrayList<>();
+        index = new LinkedHashMap<>(16, 0.75f, true);
+        freeBlocks = new int[0];
+    }
+
+    @Override
+    protected synchronized void freeUnmanaged() {
+        index.clear();
+        slabs.clear();
+        freeBlocks = new int[0];
+        freeCount = 0;
+        usedBytes = 0;
+    }
+
+    public boolean add(TK key, byte[] value) {
+        require(value);
+
+        return add(key, new BytesSegment(value));
+    }
+
+    /**
+     * @return false if the value is larger than the capacity, the previous value of the key is kept then
+     */
+    public synchronized boolean add(TK key, BytesSegment value) {
+        require(key, value);
+        checkNotClosed();
+
+        int need = (value.count + blockSize - 1) / blockSize;
+        if ((long) need * blockSize > getCapacity()) {
+            return false;
+        }
+        Entry old = index.remove(key);
+        if (old != null) {
+            free(old);
+        }
+        while (freeCount < need && slabs.size() < maxSlabs) {
+            allocSlab();
+        }
+        Iterator<Entry> lru = index.values().iterator();
+        while (freeCount < need) {
+            Entry victim = lru.next();
+            lru.remove();
+            free(victim);
+            evictionCount++;
+        }
+
+        int[] blocks = new int[need];
+        for (int i = 0, offset = value.offset, remaining = value.count; i < need; i++) {
+            int block = blocks[i] = freeBlocks[--freeCount], len = Math.min(blockSize, remaining);
+            ByteBuffer slab = slabAt(block);
+            slab.put(value.array, offset, len);
+            offset += len;
+            remaining -= len;
+        }
+        index.put(key, new Entry(blocks, value.count));
+        usedBytes += value.count;
+        return true;
+    }
+
+    /**
+     * @return a copy of the value or null
+     */
+    public synchronized byte[] get(TK key) {
+        require(key);
+        checkNotClosed();
+
+        Entry entry = index.get(key);
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        byte[] value = new byte[entry.length];
+        for (int i = 0, offset = 0; i < entry.blocks.length; i++) {
+            int len = Math.min(blockSize, entry.length - offset);
+            slabAt(entry.blocks[i]).get(value, offset, len);
+            offset += len;
+        }
+        return value;
+    }
+
+    public BytesSegment getSegment(TK key) {
+        byte[] value = get(key);
+        return value == null ? null : new BytesSegment(value);
+    }
+
+    public synchronized boolean containsKey(TK key) {
+        require(key);
+
+        return index.containsKey(key);
+    }
+
+    public synchronized void remove(TK key) {
+        require(key);
+        checkNotClosed();
+
+        Entry entry = index.remove(key);
+        if (entry != null) {
+            free(entry);
+        }
+    }
+
+    public synchronized void clear() {
+        checkNotClosed();
+
+        for (Map.Entry<TK, Entry> entry : index.entrySet()) {
+            free(entry.getValue());
+        }
+        index.clear();
+    }
+
+    private void allocSlab() {
+        int first = slabs.size() * blocksPerSlab;
+        slabs.add(ByteBuffer.allocateDirect(slabSize));
+        if (freeBlocks.length < first + blocksPerSlab) {
+            int[] grown = new int[first + blocksPerSlab];
+            System.arraycopy(freeBlocks, 0, grown, 0, freeCount);
+            freeBlocks = grown;
+        }
+        //push in reverse so blocks are handed out in address order
+        for (int block = first + blocksPerSlab - 1; block >= first; block--) {
+            freeBlocks[freeCount++] = block;
+        }
+    }
+
+    private ByteBuffer slabAt(int block) {
+        ByteBuffer slab = slabs.get(block / blocksPerSlab);
+        slab.clear().position((block % blocksPerSlab) * blockSize);
+        return slab;
+    }
+
+    private void free(Entry entry) {
+        for (int block : entry.blocks) {
+            freeBlocks[freeCount++] = block;
+        }
+        usedBytes -= entry.length;
+    }
+}
@@ -1,13 +1,21 @@
 package org.rx.cache;
 
 import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
 
 import org.rx.App;
 import org.rx.Logger;
+import org.rx.SystemException;
+import org.rx.bean.Const;
+import org.rx.util.AsyncTask;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 
 import static org.rx.Contract.as;
@@ -17,6 +25,40 @@ import static org.rx.Contract.require;
  * http://blog.csdn.net/nicolasyan/article/details/50840852
  */
 public class WeakCache<TK, TV> {
+    private interface KeyedReference<TK> {
+        TK getKey();
+    }
+
+    private static final class WeakEntry<TK> extends WeakReference implements KeyedReference<TK> {
+        private final TK key;
+
+        private WeakEntry(TK key, Object referent, ReferenceQueue queue) {
+            super(referent, queue);
+            this.key = key;
+        }
+
+        @Override
+        public TK getKey() {
+            return key;
+        }
+    }
+
+    private static final class SoftEntry<TK> extends SoftReference implements KeyedReference<TK> {
+        private final TK key;
+
+        private SoftEntry(TK key, Object referent, ReferenceQueue queue) {
+            super(referent, queue);
+            this.key = key;
+        }
+
+        @Override
+        public TK getKey() {
+            return key;
+        }
+    }
+
+    private static final boolean             boundedStore = Boolean.parseBoolean(
+            String.valueOf(App.readSetting(Const.SettingNames.CacheBoundedStore)));
     private static WeakCache<String, Object> instance;
 
     public static WeakCache<String, Object> getInstance() {
@@ -30,15 +72,24 @@ public class WeakCache<TK, TV> {
         return instance;
     }
 
+    /**
+     * Routes to BoundedCache when app.cache.boundedStore is true.
+     */
     public static Object getOrStore(Class caller, String key, Function<String, Object> supplier) {
         require(caller, key, supplier);
 
+        if (boundedStore) {
+            return BoundedCache.getOrStore(caller, key, supplier);
+        }
         String k = App.cacheKey(caller.getName() + key);
         return getInstance().getOrAdd(k, p -> supplier.apply(key));
     }
 
-    private ConcurrentMap<TK, Reference> container;
-    private boolean                      softRef;
+    private ConcurrentMap<TK, Reference>                   container;
+    private final ConcurrentMap<TK, CompletableFuture<TV>> loading;
+    private final ReferenceQueue                           refQueue;
+    private final LongAdder                                expungedCount;
+    private boolean                                        softRef;
 
     public boolean isSoftRef() {
         return softRef;
@@ -48,13 +99,57 @@ public class WeakCache<TK, TV> {
         this.softRef = softRef;
     }
 
+    /**
+     * Entry count including stale entries not expunged yet.
+     */
+    public int size() {
+        return container.size();
+    }
+
+    /**
+     * Scans the map, entries whose value was collected but not expunged yet.
+     */
+    public int getStaleCount() {
+        int count = 0;
+        for (Reference ref : container.values()) {
+            if (ref.get() == null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int getLiveCount() {
+        return Math.max(size() - getStaleCount(), 0);
+    }
+
+    public long getExpungedCount() {
+        return expungedCount.sum();
+    }
+
     public WeakCache() {
         container = new ConcurrentHashMap<>();
+        loading = new ConcurrentHashMap<>();
+        refQueue = new ReferenceQueue();
+        expungedCount = new LongAdder();
+    }
+
+    /**
+     * Drops the entries whose values were collected, called on every access.
+     */
+    public void expungeStaleEntries() {
+        Reference ref;
+        while ((ref = refQueue.poll()) != null) {
+            if (container.remove(((KeyedReference<TK>) ref).getKey(), ref)) {
+                expungedCount.increment();
+            }
+        }
     }
 
     private Reference getItem(TK key) {
         require(key);
 
+        expungeStaleEntries();
         return container.get(key);
     }
 
@@ -72,7 +167,7 @@ public class WeakCache<TK, TV> {
                 return;
             }
         }
-        container.put(key, isSoftRef ? new SoftReference(val) : new WeakReference(val));
+        container.put(key, isSoftRef ? new SoftEntry<>(key, val, refQueue) : new WeakEntry<>(key, val, refQueue));
     }
 
     public void remove(TK key) {
@@ -109,14 +204,71 @@ public class WeakCache<TK, TV> {
         return getOrAdd(key, supplier, softRef);
     }
 
+    /**
+     * Concurrent misses on the same key share one supplier call.
+     */
     public TV getOrAdd(TK key, Function<TK, TV> supplier, boolean isSoftRef) {
         require(supplier);
 
-        TV v;
-        Reference ref = getItem(key);
-        if (ref == null || (v = (TV) ref.get()) == null) {
-            add(key, v = supplier.apply(key), isSoftRef);
+        TV v = get(key);
+        if (v != null) {
+            return v;
+        }
+        try {
+            return load(key, supplier, isSoftRef, false).join();
+        } catch (CompletionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw SystemException.wrap(cause);
+        }
+    }
+
+    public CompletableFuture<TV> getOrAddAsync(TK key, Function<TK, TV> supplier) {
+        return getOrAddAsync(key, supplier, softRef);
+    }
+
+    /**
+     * A miss runs the supplier on AsyncTask.TaskFactory, so the caller never blocks.
+     */
+    public CompletableFuture<TV> getOrAddAsync(TK key, Function<TK, TV> supplier, boolean isSoftRef) {
+        require(supplier);
+
+        TV v = get(key);
+        if (v != null) {
+            return CompletableFuture.completedFuture(v);
+        }
+        return load(key, supplier, isSoftRef, true);
+    }
+
+    private CompletableFuture<TV> load(TK key, Function<TK, TV> supplier, boolean isSoftRef, boolean async) {
+        CompletableFuture<TV> future = new CompletableFuture<>(), inFlight = loading.putIfAbsent(key, future);
+        if (inFlight != null) {
+            return inFlight;
+        }
+        Runnable task = () -> {
+            try {
+                //a load may have finished between the miss and putIfAbsent
+                TV v = get(key);
+                if (v == null) {
+                    add(key, v = supplier.apply(key), isSoftRef);
+                }
+                future.complete(v);
+            } catch (Throwable ex) {
+                future.completeExceptionally(ex);
+            } finally {
+                loading.remove(key, future);
+            }
+        };
+        if (async) {
+            AsyncTask.TaskFactory.run(task);
+        } else {
+            task.run();
         }
-        return v;
+        return future;
     }
 }
@@ -6,6 +6,7 @@ import net.sf.cglib.proxy.Enhancer;
 import net.sf.cglib.proxy.MethodInterceptor;
 import net.sf.cglib.proxy.MethodProxy;
 import org.rx.Contract;
+import org.rx.SystemException;
 import org.rx.bean.Tuple;
 
 import org.rx.App;
@@ -13,14 +14,21 @@ import org.rx.socket.HttpClient;
 import org.springframework.core.ParameterNameDiscoverer;
 import org.springframework.core.PrioritizedParameterNameDiscoverer;
 
+import java.io.InputStream;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Parameter;
 import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static org.rx.Contract.isNull;
 
@@ -58,7 +66,7 @@ public class RestClient {
             HttpClient client = new HttpClient();
             client.setProxyHost(proxyHost);
             if (App.equals(httpMethod, HttpClient.GetMethod, true)) {
-                return setResult(method, client.httpGet(url));
+                return setResult(method, () -> client.httpGet(url), () -> client.httpGetStreamAsync(url));
             }
 
             Parameter[] parameters = method.getParameters();
@@ -68,7 +76,8 @@ public class RestClient {
                             : parameters[offset].getName();
             System.out.println(method.getDeclaringClass().getName() + " pNames: " + Arrays.toString(parameterNames));
             if (!isFormParam && parameters.length == 1) {
-                return setResult(method, client.httpPost(url, args[0]));
+                return setResult(method, () -> client.httpPost(url, args[0]),
+                        () -> client.httpPostStreamAsync(url, args[0]));
             }
 
             if (!isFormParam) {
@@ -79,7 +88,8 @@ public class RestClient {
                     jsonEntity.put(restParam != null ? isNull(restParam.name(), restParam.value()) : func.apply(i),
                             args[i]);
                 }
-                return setResult(method, client.httpPost(url, jsonEntity));
+                return setResult(method, () -> client.httpPost(url, jsonEntity),
+                        () -> client.httpPostStreamAsync(url, jsonEntity));
             }
 
             Map<String, String> params = new HashMap<>();
@@ -89,7 +99,7 @@ public class RestClient {
                 params.put(restParam != null ? isNull(restParam.name(), restParam.value()) : func.apply(i),
                         Contract.toJsonString(args[i]));
             }
-            return setResult(method, client.httpPost(url, params));
+            return setResult(method, () -> client.httpPost(url, params), () -> client.httpPostStreamAsync(url, params));
         }
 
         @Override
@@ -97,8 +107,22 @@ public class RestClient {
             return invoke(o, method, objects);
         }
 
-        private Object setResult(Method method, String resText) {
+        private Object setResult(Method method, Supplier<String> text,
+                                 Supplier<CompletableFuture<Tuple<InputStream, String>>> stream) throws Exception {
             Class<?> returnType = method.getReturnType();
+            if (!returnType.equals(Void.TYPE) && !isScalar(returnType)) {
+                //beans and collections parse off the response stream in the response charset
+                Tuple<InputStream, String> body;
+                try {
+                    body = stream.get().get();
+                } catch (ExecutionException ex) {
+                    throw SystemException.wrap(ex.getCause());
+                }
+                try (InputStream in = body.left) {
+                    return JSON.parseObject(in, Charset.forName(body.right), method.getGenericReturnType());
+                }
+            }
+            String resText = text.get();
             if (returnType.equals(Void.TYPE)) {
                 return Void.TYPE;
             }
@@ -108,6 +132,12 @@ public class RestClient {
         }
     }
 
+    private static boolean isScalar(Class<?> type) {
+        return type.isPrimitive() || type.isEnum() || CharSequence.class.isAssignableFrom(type)
+                || Number.class.isAssignableFrom(type) || type.equals(Boolean.class) || type.equals(Character.class)
+                || Date.class.isAssignableFrom(type) || type.equals(UUID.class);
+    }
+
     public static <T> T create(Class<? extends T> restInterface, String baseUrl) {
         return create(restInterface, baseUrl, null, true);
     }
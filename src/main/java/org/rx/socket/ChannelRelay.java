@@ -0,0 +1,337 @@
+package org.rx.socket;
+
+import org.rx.Logger;
+import org.rx.bean.Tuple;
+import org.rx.cache.BufferPool;
+import org.rx.cache.ByteBufferSegment;
+import org.rx.util.AsyncTask;
+import org.rx.util.MemoryStream;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * One proxied connection of a DirectSocket in selector mode. Every channel op runs on the owning EventLoop, a full
+ * buffer stops reading from its source and a drained one resumes it, so a slow peer never buffers more than one
+ * segment per direction.
+ */
+final class ChannelRelay implements EventLoop.Handler {
+    /**
+     * One direction, the buffer stays in fill mode between events.
+     */
+    private static final class Pipe {
+        private final SocketChannel     src, dst;
+        private final ByteBufferSegment segment;
+        private boolean                 eof, shutdown;
+        private long                    bytes;
+
+        private Pipe(SocketChannel src, SocketChannel dst, ByteBufferSegment segment) {
+            this.src = src;
+            this.dst = dst;
+            this.segment = segment;
+        }
+
+        private boolean canRead() {
+            return !eof && segment.buffer.hasRemaining();
+        }
+
+        private boolean hasPending() {
+            return segment.buffer.position() > 0;
+        }
+
+        /**
+         * Reads and forwards until the source is drained, the sink pushes back or the spin limit is hit.
+         *
+         * @return bytes read
+         */
+        private int read() throws IOException {
+            int total = 0;
+            for (int i = 0; i < MaxReadsPerEvent; i++) {
+                int read = src.read(segment.buffer);
+                if (read < 0) {
+                    eof = true;
+                } else {
+                    total += read;
+                }
+                flush();
+                if (read <= 0 || hasPending()) {
+                    break;
+                }
+            }
+            bytes += total;
+            return total;
+        }
+
+        private void flush() throws IOException {
+            ByteBuffer buffer = segment.buffer;
+            buffer.flip();
+            try {
+                while (buffer.hasRemaining()) {
+                    if (dst.write(buffer) == 0) {
+                        break;
+                    }
+                }
+            } finally {
+                buffer.compact();
+            }
+            if (eof && !hasPending() && !shutdown) {
+                dst.shutdownOutput();
+                shutdown = true;
+            }
+        }
+    }
+
+    static final int                BufferSize = 16 * 1024, MaxReadsPerEvent = 8;
+    private final DirectSocket      owner;
+    private final EventLoop         loop;
+    private final SocketChannel     client;
+    private final ByteBufferSegment outSegment, inSegment;
+    private SocketChannel           upstream;
+    private InetSocketAddress       upstreamAddr;
+    private AutoCloseable           upstreamOwner;
+    private SelectionKey            clientKey, upstreamKey;
+    private Pipe                    outbound, inbound;
+    private MemoryStream            firstPack;
+    private int                     connectCount;
+    private volatile boolean        closed;
+
+    Socket getClient() {
+        return client.socket();
+    }
+
+    Socket getUpstream() {
+        SocketChannel channel = upstream;
+        return channel == null ? null : channel.socket();
+    }
+
+    ChannelRelay(DirectSocket owner, EventLoop loop, SocketChannel client) {
+        this.owner = owner;
+        this.loop = loop;
+        this.client = client;
+        outSegment = BufferPool.Default.allocDirect(BufferSize);
+        inSegment = BufferPool.Default.allocDirect(BufferSize);
+    }
+
+    void start() throws IOException {
+        clientKey = loop.register(client, 0, this);
+        InetSocketAddress directAddress = owner.getDirectAddress();
+        if (directAddress != null) {
+            connect(directAddress);
+            return;
+        }
+        firstPack = new MemoryStream(32, true);
+        clientKey.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void connect(InetSocketAddress remoteAddr) throws IOException {
+        connectCount++;
+        upstreamAddr = remoteAddr;
+        upstream = SocketChannel.open();
+        upstream.configureBlocking(false);
+        upstream.socket().setTcpNoDelay(true);
+        if (upstream.connect(remoteAddr)) {
+            onConnected();
+            return;
+        }
+        upstreamKey = loop.register(upstream, SelectionKey.OP_CONNECT, this);
+    }
+
+    private void finishConnect() throws IOException {
+        try {
+            upstream.finishConnect();
+        } catch (IOException ex) {
+            if (connectCount >= owner.getConnectRetryCount()) {
+                throw ex;
+            }
+            Logger.debug("ChannelRelay connect %s retry %s: %s", upstreamAddr, connectCount, ex.getMessage());
+            upstreamKey.cancel();
+            upstreamKey = null;
+            upstream.close();
+            connect(upstreamAddr);
+            return;
+        }
+        onConnected();
+    }
+
+    private void onConnected() throws IOException {
+        if (upstreamKey == null) {
+            upstreamKey = loop.register(upstream, 0, this);
+        }
+        outbound = new Pipe(client, upstream, outSegment);
+        inbound = new Pipe(upstream, client, inSegment);
+        firstPack = null;
+        owner.getTracer().writeLine("relay socket[%s->%s] to %s..", Sockets.getId(client.socket(), true),
+                Sockets.getId(client.socket(), false), Sockets.getId(upstream.socket(), true));
+        //bytes read while choosing the upstream go out first
+        if (outbound.hasPending()) {
+            outbound.flush();
+        }
+        updateInterest();
+    }
+
+    /**
+     * Reads until directSupplier picks an upstream, the supplier may block so it runs off the loop.
+     */
+    private void readFirstPack() throws IOException {
+        ByteBuffer buffer = outSegment.buffer;
+        int start = buffer.position(), read = client.read(buffer);
+        if (read < 0) {
+            close();
+            return;
+        }
+        if (read == 0) {
+            return;
+        }
+        ByteBuffer chunk = buffer.duplicate();
+        chunk.position(start).limit(buffer.position());
+        firstPack.write(chunk);
+        clientKey.interestOps(0);
+
+        MemoryStream pack = firstPack;
+        AsyncTask.TaskFactory.run(() -> {
+            Tuple<AutoCloseable, Socket> toSocks = null;
+            SocketChannel channel = null;
+            InetSocketAddress remoteAddr = null;
+            try {
+                if ((toSocks = owner.getDirectSupplier().get(pack)) != null) {
+                    //a plain Socket cannot join a selector, release it and dial the same address
+                    if ((channel = toSocks.right.getChannel()) != null) {
+                        channel.configureBlocking(false);
+                    } else {
+                        remoteAddr = (InetSocketAddress) toSocks.right.getRemoteSocketAddress();
+                        toSocks.left.close();
+                    }
+                }
+            } catch (Throwable ex) {
+                if (toSocks != null) {
+                    closeQuietly(toSocks.right);
+                    closeQuietly(toSocks.left);
+                }
+                loop.execute(() -> onError(ex));
+                return;
+            }
+            //the relay state is only touched on the loop thread
+            SocketChannel toChannel = channel;
+            AutoCloseable toOwner = channel != null ? toSocks.left : null;
+            InetSocketAddress toAddr = remoteAddr;
+            loop.execute(() -> {
+                if (closed) {
+                    //close() ran while the supplier was busy, so the upstream is ours to close
+                    if (toChannel != null) {
+                        closeQuietly(toChannel);
+                        closeQuietly(toOwner);
+                    }
+                    return;
+                }
+                try {
+                    if (toChannel != null) {
+                        upstream = toChannel;
+                        upstreamOwner = toOwner;
+                        onConnected();
+                    } else if (toAddr != null) {
+                        connect(toAddr);
+                    } else if (buffer.hasRemaining()) {
+                        clientKey.interestOps(SelectionKey.OP_READ);
+                    } else {
+                        onError(new SocketException((InetSocketAddress) client.socket().getLocalSocketAddress(),
+                                "DirectSocket directSupplier error"));
+                    }
+                } catch (Throwable ex) {
+                    onError(ex);
+                }
+            });
+        }, "ChannelRelay[directSupplier]");
+    }
+
+    @Override
+    public void onSelect(SelectionKey key) throws IOException {
+        if (closed) {
+            return;
+        }
+        if (key.isConnectable()) {
+            finishConnect();
+            return;
+        }
+        if (outbound == null) {
+            if (key.isReadable()) {
+                readFirstPack();
+            }
+            return;
+        }
+
+        boolean isClient = key == clientKey;
+        if (key.isReadable()) {
+            Pipe pipe = isClient ? outbound : inbound;
+            int read = pipe.read();
+            if (read > 0 && owner.isTraceChunks()) {
+                owner.getTracer().writeLine("%s %s bytes from %s to %s..", isClient ? "sent" : "recv", read,
+                        Sockets.getId(pipe.src.socket(), isClient), Sockets.getId(pipe.dst.socket(), !isClient));
+            }
+        }
+        if (key.isValid() && key.isWritable()) {
+            (isClient ? inbound : outbound).flush();
+        }
+        updateInterest();
+    }
+
+    private void updateInterest() {
+        if (outbound.shutdown && inbound.shutdown) {
+            close();
+            return;
+        }
+        clientKey.interestOps((outbound.canRead() ? SelectionKey.OP_READ : 0)
+                | (inbound.hasPending() ? SelectionKey.OP_WRITE : 0));
+        upstreamKey.interestOps((inbound.canRead() ? SelectionKey.OP_READ : 0)
+                | (outbound.hasPending() ? SelectionKey.OP_WRITE : 0));
+    }
+
+    @Override
+    public void onError(Throwable ex) {
+        if (ex instanceof IOException) {
+            Logger.debug("ChannelRelay socket[%s] %s", Sockets.getId(client.socket(), true), ex.getMessage());
+        } else {
+            Logger.error(ex, "ChannelRelay");
+        }
+        close();
+    }
+
+    /**
+     * Closes both channels and returns the buffers, safe from any thread.
+     */
+    void close() {
+        if (!loop.inLoop()) {
+            loop.execute(this::close);
+            return;
+        }
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        owner.getTracer().writeLine("relay socket[%s] closing, sent %s bytes, recv %s bytes",
+                Sockets.getId(client.socket(), true), outbound == null ? 0 : outbound.bytes,
+                inbound == null ? 0 : inbound.bytes);
+        owner.removeRelay(this);
+        closeQuietly(client);
+        if (upstream != null) {
+            closeQuietly(upstream);
+        }
+        if (upstreamOwner != null) {
+            closeQuietly(upstreamOwner);
+        }
+        outSegment.close();
+        inSegment.close();
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception ex) {
+            Logger.debug("ChannelRelay close: %s", ex.getMessage());
+        }
+    }
+}
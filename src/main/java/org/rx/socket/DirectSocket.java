@@ -1,49 +1,67 @@
 package org.rx.socket;
 
 import org.rx.*;
-import org.rx.bean.Const;
 import org.rx.bean.Tuple;
-import org.rx.cache.BufferSegment;
+import org.rx.cache.BufferPool;
 import org.rx.cache.BytesSegment;
 import org.rx.util.AsyncTask;
 import org.rx.util.MemoryStream;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.rx.$.$;
 import static org.rx.Contract.isNull;
 import static org.rx.Contract.require;
 
 public class DirectSocket extends Traceable implements AutoCloseable {
+    /**
+     * Blocking: two threads per connection relay through NetworkStream. Selector: a few shared EventLoop threads
+     * relay every connection with pooled direct buffers.
+     */
+    public enum RelayMode {
+        Blocking,
+        Selector
+    }
+
     @FunctionalInterface
     public interface SocketSupplier {
         Tuple<AutoCloseable, Socket> get(MemoryStream pack);
     }
 
     private static class ClientItem {
-        private final DirectSocket  owner;
-        private final BufferSegment segment;
-        public final NetworkStream  stream;
-        public final AutoCloseable  toSock;
-        public final NetworkStream  toStream;
+        private final DirectSocket owner;
+        public final NetworkStream stream;
+        public final AutoCloseable toSock;
+        public final NetworkStream toStream;
 
         public ClientItem(Socket client, DirectSocket owner) {
             this.owner = owner;
-            segment = new BufferSegment(Const.DefaultBufferSize, 2);
+            NetworkStream stream = null, toStream = null;
+            AutoCloseable toSock = null;
+            Socket toSocket = null;
+            boolean connected = false;
             try {
-                stream = new NetworkStream(client, segment.alloc());
+                //chunks are forwarded as they arrive, Nagle would only hold them back
+                client.setTcpNoDelay(true);
+                stream = newStream(client, true);
                 if (owner.directAddress != null) {
                     SocketPool.PooledSocket pooledSocket = App.retry(p -> SocketPool.Pool.borrowSocket(p.directAddress),
                             owner, owner.connectRetryCount);
                     toSock = pooledSocket;
-                    toStream = new NetworkStream(pooledSocket.socket, segment.alloc(), false);
-                    return;
-                }
-                if (owner.directSupplier != null) {
+                    toSocket = pooledSocket.socket;
+                    toSocket.setTcpNoDelay(true);
+                    toStream = newStream(toSocket, false);
+                } else if (owner.directSupplier != null) {
                     MemoryStream firstPack = new MemoryStream(32, true);
                     BytesSegment buffer = stream.getSegment();
                     int read;
@@ -53,18 +71,58 @@ public class DirectSocket extends Traceable implements AutoCloseable {
                         Tuple<AutoCloseable, Socket> toSocks;
                         if ((toSocks = owner.directSupplier.get(firstPack)) != null) {
                             toSock = toSocks.left;
-                            firstPack.writeTo(toStream = new NetworkStream(toSocks.right, segment.alloc(), false));
-                            return;
+                            toSocket = toSocks.right;
+                            toStream = newStream(toSocket, false);
+                            firstPack.writeTo(toStream);
+                            break;
                         }
                     }
-                    Logger.info("DirectSocket ClientItem directSupplier read: %s\ncontent: %s", read,
-                            Bytes.toString(firstPack.toArray(), 0, firstPack.getLength()));
+                    if (toStream == null) {
+                        Logger.info("DirectSocket ClientItem directSupplier read: %s\ncontent: %s", read,
+                                Bytes.toString(firstPack.toArray(), 0, firstPack.getLength()));
+                    }
                 }
+                connected = toStream != null;
             } catch (IOException ex) {
                 throw new SocketException((InetSocketAddress) client.getLocalSocketAddress(), ex);
+            } finally {
+                //a failed dial returns the pooled buffers and the upstream lease
+                if (!connected) {
+                    if (toSocket != null) {
+                        Sockets.close(toSocket);
+                    }
+                    if (toSock != null) {
+                        try {
+                            toSock.close();
+                        } catch (Exception ex) {
+                            Logger.error(ex, "DirectSocket ClientItem");
+                        }
+                    }
+                    if (toStream != null) {
+                        toStream.close();
+                    }
+                    if (stream != null) {
+                        stream.close();
+                    }
+                }
+            }
+            if (!connected) {
+                throw new SocketException((InetSocketAddress) client.getLocalSocketAddress(),
+                        "DirectSocket directSupplier error");
+            }
+            this.stream = stream;
+            this.toSock = toSock;
+            this.toStream = toStream;
+        }
+
+        private static NetworkStream newStream(Socket socket, boolean ownsSocket) throws IOException {
+            BytesSegment segment = BufferPool.Default.alloc();
+            try {
+                return new NetworkStream(socket, segment, ownsSocket);
+            } catch (IOException ex) {
+                segment.close();
+                throw ex;
             }
-            throw new SocketException((InetSocketAddress) client.getLocalSocketAddress(),
-                    "DirectSocket directSupplier error");
         }
 
         public void closeSocket() {
@@ -77,15 +135,17 @@ public class DirectSocket extends Traceable implements AutoCloseable {
         public void closeToSocket(boolean pooling) {
             owner.getTracer().writeLine("client %s socket[%s->%s]..", pooling ? "pooling" : "close",
                     Sockets.getId(toStream.getSocket(), false), Sockets.getId(toStream.getSocket(), true));
-            if (pooling) {
-                try {
-                    toSock.close();
-                } catch (Exception ex) {
-                    ex.printStackTrace();
-                }
-            } else {
+            if (!pooling) {
                 Sockets.close(toStream.getSocket());
             }
+            //a closed socket is discarded by the pool, either way the lease is released
+            try {
+                toSock.close();
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+            //returns the buffer, the socket is not owned
+            toStream.close();
         }
     }
 
@@ -102,16 +162,21 @@ public class DirectSocket extends Traceable implements AutoCloseable {
                                                                     } catch (MalformedURLException ex) {
                                                                         throw SystemException.wrap(ex);
                                                                     }
+                                                                    //spreads over every address of the host
                                                                     SocketPool.PooledSocket pooledSocket = App.retry(
-                                                                            p -> SocketPool.Pool.borrowSocket(p),
+                                                                            p -> SocketPool.Pool.borrowSocket(
+                                                                                    p.getHostString(), p.getPort()),
                                                                             authority, 2);
                                                                     return Tuple.of(pooledSocket, pooledSocket.socket);
                                                                 };
     private static final int           DefaultBacklog           = 128;
     private static final int           DefaultConnectRetryCount = 4;
     private final ServerSocket         server;
+    private final RelayMode            relayMode;
     private final List<ClientItem>     clients;
+    private final Set<ChannelRelay>    relays;
     private volatile int               connectRetryCount;
+    private volatile boolean           traceChunks;
     private InetSocketAddress          directAddress;
     private SocketSupplier             directSupplier;
 
@@ -124,10 +189,47 @@ public class DirectSocket extends Traceable implements AutoCloseable {
         return (InetSocketAddress) server.getLocalSocketAddress();
     }
 
+    public boolean isTraceChunks() {
+        return traceChunks;
+    }
+
+    /**
+     * Logs every relayed chunk, off by default since it costs a log line per read. Applies to new connections in
+     * blocking mode.
+     */
+    public void setTraceChunks(boolean traceChunks) {
+        this.traceChunks = traceChunks;
+    }
+
+    public RelayMode getRelayMode() {
+        return relayMode;
+    }
+
     public NQuery<Tuple<Socket, Socket>> getClients() {
+        if (relayMode == RelayMode.Selector) {
+            return NQuery.of(relays).select(p -> Tuple.of(p.getClient(), p.getUpstream()));
+        }
         return NQuery.of(clients).select(p -> Tuple.of(p.stream.getSocket(), p.toStream.getSocket()));
     }
 
+    /**
+     * Keeps count upstream sockets connected in SocketPool.Pool, so the first clients skip the TCP connect. Only the
+     * blocking mode with a directAddress borrows from the pool.
+     */
+    public CompletableFuture<Void> prewarm(int count) {
+        require(this, directAddress != null && relayMode == RelayMode.Blocking);
+
+        return SocketPool.Pool.prewarm(directAddress, count);
+    }
+
+    InetSocketAddress getDirectAddress() {
+        return directAddress;
+    }
+
+    SocketSupplier getDirectSupplier() {
+        return directSupplier;
+    }
+
     public int getConnectRetryCount() {
         return connectRetryCount;
     }
@@ -144,46 +246,124 @@ public class DirectSocket extends Traceable implements AutoCloseable {
     }
 
     public DirectSocket(InetSocketAddress listenAddr, InetSocketAddress directAddr, SocketSupplier directSupplier) {
-        require(listenAddr);
+        this(listenAddr, directAddr, directSupplier, RelayMode.Blocking);
+    }
+
+    public DirectSocket(InetSocketAddress listenAddr, InetSocketAddress directAddr, SocketSupplier directSupplier,
+                        RelayMode relayMode) {
+        require(listenAddr, relayMode);
         require(this, directAddr != null || directSupplier != null);
 
+        ServerSocketChannel serverChannel = null;
         try {
-            server = new ServerSocket();
+            if (relayMode == RelayMode.Selector) {
+                serverChannel = ServerSocketChannel.open();
+                serverChannel.configureBlocking(false);
+                server = serverChannel.socket();
+            } else {
+                //accepted sockets of a channel serialize read and write, the blocking relay needs plain sockets
+                server = new ServerSocket();
+            }
             server.setReuseAddress(true);
             server.bind(listenAddr, DefaultBacklog);
         } catch (IOException ex) {
             throw new SocketException(listenAddr, ex);
         }
+        this.relayMode = relayMode;
         directAddress = directAddr;
         this.directSupplier = directSupplier;
         clients = Collections.synchronizedList(new ArrayList<>());
+        relays = ConcurrentHashMap.newKeySet();
         connectRetryCount = DefaultConnectRetryCount;
         String taskName = String.format("DirectSocket[%s->%s]", listenAddr, isNull(directAddress, "autoAddress"));
         Logger tracer = new Logger();
         tracer.setPrefix(taskName + " ");
         setTracer(tracer);
-        AsyncTask.TaskFactory.run(() -> {
-            getTracer().writeLine("start..");
-            while (!isClosed()) {
-                try {
-                    ClientItem client = new ClientItem(server.accept(), this);
-                    clients.add(client);
-                    onReceive(client, taskName);
-                } catch (IOException ex) {
-                    Logger.error(ex, taskName);
+        if (serverChannel != null) {
+            listen(serverChannel);
+        } else {
+            AsyncTask.VirtualFactory.run(() -> {
+                getTracer().writeLine("start..");
+                while (!isClosed()) {
+                    try {
+                        Socket sock = server.accept();
+                        //ClientItem dials the upstream, keep it off the accept loop
+                        AsyncTask.VirtualFactory.run(() -> {
+                            ClientItem client;
+                            try {
+                                client = new ClientItem(sock, this);
+                            } catch (SystemException ex) {
+                                Logger.error(ex, taskName);
+                                Sockets.close(sock);
+                                return;
+                            }
+                            clients.add(client);
+                            onReceive(client, taskName);
+                        }, String.format("%s[clientItem]", taskName));
+                    } catch (IOException ex) {
+                        Logger.error(ex, taskName);
+                    }
+                }
+                close();
+            }, taskName);
+        }
+    }
+
+    private void listen(ServerSocketChannel serverChannel) {
+        EventLoop acceptLoop = EventLoop.next();
+        EventLoop.Handler acceptor = new EventLoop.Handler() {
+            @Override
+            public void onSelect(SelectionKey key) throws IOException {
+                SocketChannel channel;
+                while ((channel = serverChannel.accept()) != null) {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    EventLoop loop = EventLoop.next();
+                    ChannelRelay relay = new ChannelRelay(DirectSocket.this, loop, channel);
+                    relays.add(relay);
+                    loop.execute(() -> {
+                        try {
+                            relay.start();
+                        } catch (Throwable ex) {
+                            relay.onError(ex);
+                        }
+                    });
                 }
             }
-            close();
-        }, taskName);
+
+            @Override
+            public void onError(Throwable ex) {
+                Logger.error(ex, "DirectSocket accept");
+                if (!serverChannel.isOpen()) {
+                    close();
+                }
+            }
+        };
+        acceptLoop.execute(() -> {
+            try {
+                acceptLoop.register(serverChannel, SelectionKey.OP_ACCEPT, acceptor);
+                getTracer().writeLine("start..");
+            } catch (IOException ex) {
+                acceptor.onError(ex);
+            }
+        });
+    }
+
+    void removeRelay(ChannelRelay relay) {
+        relays.remove(relay);
     }
 
     @Override
     protected void freeUnmanaged() {
         try {
-            for (ClientItem client : NQuery.of(clients)) {
+            //closeSocket removes the item, so iterate a copy
+            for (ClientItem client : new ArrayList<>(clients)) {
                 client.closeSocket();
             }
             clients.clear();
+            for (ChannelRelay relay : NQuery.of(relays)) {
+                relay.close();
+            }
             server.close();
         } catch (IOException ex) {
             Logger.error(ex, "DirectSocket close");
@@ -192,14 +372,26 @@ public class DirectSocket extends Traceable implements AutoCloseable {
     }
 
     private void onReceive(ClientItem client, String taskName) {
-        AsyncTask.TaskFactory.run(() -> {
+        NetworkStream.DirectPredicate sendTrace = null, recvTrace = null;
+        if (traceChunks) {
+            sendTrace = (p1, p2) -> {
+                getTracer().writeLine("sent %s bytes from %s to %s..", p2,
+                        Sockets.getId(client.stream.getSocket(), true),
+                        Sockets.getId(client.toStream.getSocket(), false));
+                return true;
+            };
+            recvTrace = (p1, p2) -> {
+                getTracer().writeLine("recv %s bytes from %s to %s..", p2,
+                        Sockets.getId(client.toStream.getSocket(), false),
+                        Sockets.getId(client.stream.getSocket(), true));
+                return true;
+            };
+        }
+        NetworkStream.DirectPredicate onSend = sendTrace, onRecv = recvTrace;
+        //one thread per direction, virtual when the JDK has them
+        AsyncTask.VirtualFactory.run(() -> {
             try {
-                int recv = client.stream.directTo(client.toStream, (p1, p2) -> {
-                    getTracer().writeLine("sent %s bytes from %s to %s..", p2,
-                            Sockets.getId(client.stream.getSocket(), true),
-                            Sockets.getId(client.toStream.getSocket(), false));
-                    return true;
-                });
+                int recv = client.stream.directTo(client.toStream, onSend);
                 getTracer().writeLine("socket[%s->%s] closing with %s", Sockets.getId(client.stream.getSocket(), false),
                         Sockets.getId(client.stream.getSocket(), true), recv);
             } catch (SystemException ex) {
@@ -216,15 +408,10 @@ public class DirectSocket extends Traceable implements AutoCloseable {
                 client.closeSocket();
             }
         }, String.format("%s[networkStream]", taskName));
-        AsyncTask.TaskFactory.run(() -> {
+        AsyncTask.VirtualFactory.run(() -> {
             int recv = NetworkStream.StreamEOF;
             try {
-                recv = client.toStream.directTo(client.stream, (p1, p2) -> {
-                    getTracer().writeLine("recv %s bytes from %s to %s..", p2,
-                            Sockets.getId(client.toStream.getSocket(), false),
-                            Sockets.getId(client.stream.getSocket(), true));
-                    return true;
-                });
+                recv = client.toStream.directTo(client.stream, onRecv);
                 getTracer().writeLine("socket[%s->%s] closing with %s",
                         Sockets.getId(client.toStream.getSocket(), false),
                         Sockets.getId(client.toStream.getSocket(), true), recv);
@@ -0,0 +1,124 @@
+package org.rx.socket;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.rx.Logger;
+import org.rx.SystemException;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.rx.Contract.require;
+
+/**
+ * One selector thread, channels registered on a loop are only touched by that thread so handlers need no locking.
+ * Other threads hand work over with execute().
+ */
+final class EventLoop implements Runnable {
+    interface Handler {
+        void onSelect(SelectionKey key) throws IOException;
+
+        void onError(Throwable ex);
+    }
+
+    private static final class Group {
+        private static final EventLoop[]   Loops;
+        private static final AtomicInteger Next = new AtomicInteger();
+
+        static {
+            ThreadFactory threadFactory = new ThreadFactoryBuilder().setDaemon(true)
+                    .setUncaughtExceptionHandler((thread, ex) -> Logger.error(ex, thread.getName()))
+                    .setNameFormat("EventLoop-%d").build();
+            Loops = new EventLoop[Runtime.getRuntime().availableProcessors()];
+            for (int i = 0; i < Loops.length; i++) {
+                Loops[i] = new EventLoop();
+                threadFactory.newThread(Loops[i]).start();
+            }
+        }
+    }
+
+    /**
+     * Round-robin over the shared loops, one per core.
+     */
+    static EventLoop next() {
+        return Group.Loops[(Group.Next.getAndIncrement() & Integer.MAX_VALUE) % Group.Loops.length];
+    }
+
+    private final Selector                        selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks;
+    private volatile Thread                       thread;
+
+    private EventLoop() {
+        try {
+            selector = Selector.open();
+        } catch (IOException ex) {
+            throw SystemException.wrap(ex);
+        }
+        tasks = new ConcurrentLinkedQueue<>();
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    void execute(Runnable task) {
+        require(task);
+
+        if (inLoop()) {
+            task.run();
+            return;
+        }
+        tasks.offer(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Must be called on the loop thread, see execute().
+     */
+    SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws ClosedChannelException {
+        require(channel, handler);
+
+        return channel.register(selector, ops, handler);
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        while (true) {
+            try {
+                selector.select();
+            } catch (IOException ex) {
+                Logger.error(ex, "EventLoop select");
+                continue;
+            }
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Throwable ex) {
+                    Logger.error(ex, "EventLoop task");
+                }
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Handler handler = (Handler) key.attachment();
+                try {
+                    if (key.isValid()) {
+                        handler.onSelect(key);
+                    }
+                } catch (Throwable ex) {
+                    handler.onError(ex);
+                }
+            }
+        }
+    }
+}
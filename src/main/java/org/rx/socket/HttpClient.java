@@ -2,16 +2,25 @@ package org.rx.socket;
 
 import org.rx.App;
 import org.rx.Contract;
+import org.rx.ErrorCode;
 import org.rx.SystemException;
 import org.rx.bean.Const;
+import org.rx.bean.Tuple;
+import org.rx.util.AsyncTask;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.net.*;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
-import static org.rx.Contract.eq;
-import static org.rx.Contract.isNull;
+import static org.rx.Contract.*;
 
 /**
  * http://www.jianshu.com/p/aa3f066263ed
@@ -72,6 +81,7 @@ public class HttpClient {
     private String              contentType;
     private int                 timeout;
     private String              proxyHost;
+    private HttpEngine          engine;
 
     public String getContentType() {
         return contentType;
@@ -97,8 +107,22 @@ public class HttpClient {
         this.proxyHost = proxyHost;
     }
 
+    public HttpEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Serves plain http without a proxy, https and proxied requests go through HttpURLConnection.
+     */
+    public void setEngine(HttpEngine engine) {
+        require(engine);
+
+        this.engine = engine;
+    }
+
     public HttpClient() {
         timeout = App.TimeoutInfinite;
+        engine = HttpEngine.Default;
     }
 
     public String httpGet(String url) {
@@ -106,23 +130,156 @@ public class HttpClient {
     }
 
     public String httpGet(String url, Map<String, String> params) {
+        return await(httpGetAsync(url, params));
+    }
+
+    public String httpPost(String url, Map<String, String> params) {
+        return await(httpPostAsync(url, params));
+    }
+
+    public String httpPost(String url, Object jsonEntity) {
+        return await(httpPostAsync(url, jsonEntity));
+    }
+
+    public CompletableFuture<String> httpGetAsync(String url) {
+        return httpGetAsync(url, null);
+    }
+
+    public CompletableFuture<String> httpGetAsync(String url, Map<String, String> params) {
+        return readAsync(httpGetStreamAsync(url, params));
+    }
+
+    public CompletableFuture<String> httpPostAsync(String url, Map<String, String> params) {
+        return readAsync(httpPostStreamAsync(url, params));
+    }
+
+    public CompletableFuture<String> httpPostAsync(String url, Object jsonEntity) {
+        return readAsync(httpPostStreamAsync(url, jsonEntity));
+    }
+
+    /**
+     * The decoded response body, the caller closes it.
+     */
+    public InputStream httpGetStream(String url) {
+        return await(httpGetStreamAsync(url)).left;
+    }
+
+    public InputStream httpPostStream(String url, Map<String, String> params) {
+        return await(httpPostStreamAsync(url, params)).left;
+    }
+
+    /**
+     * The entity is serialized straight into the request, see Contract.writeJsonTo.
+     */
+    public InputStream httpPostStream(String url, Object jsonEntity) {
+        return await(httpPostStreamAsync(url, jsonEntity)).left;
+    }
+
+    /**
+     * Completes with the decoded response body and its charset.
+     */
+    public CompletableFuture<Tuple<InputStream, String>> httpGetStreamAsync(String url) {
+        return httpGetStreamAsync(url, null);
+    }
+
+    public CompletableFuture<Tuple<InputStream, String>> httpGetStreamAsync(String url, Map<String, String> params) {
         if (params != null && params.size() > 0) {
             url = buildQueryString(url, params);
         }
-        return exec(url, GetMethod, null, contentType, timeout);
+        return openAsync(url, GetMethod, null, null, contentType, timeout);
     }
 
-    public String httpPost(String url, Map<String, String> params) {
+    public CompletableFuture<Tuple<InputStream, String>> httpPostStreamAsync(String url, Map<String, String> params) {
         contentType = FormMimeType;
-        return exec(url, PostMethod, buildQueryString("", params).substring(1), contentType, timeout);
+        String query = buildQueryString("", params);
+        byte[] content;
+        try {
+            content = (query.isEmpty() ? query : query.substring(1)).getBytes(Const.Utf8);
+        } catch (UnsupportedEncodingException ex) {
+            throw SystemException.wrap(ex);
+        }
+        return openAsync(url, PostMethod, content, null, contentType, timeout);
     }
 
-    public String httpPost(String url, Object jsonEntity) {
+    public CompletableFuture<Tuple<InputStream, String>> httpPostStreamAsync(String url, Object jsonEntity) {
         contentType = JsonMimeType;
-        return exec(url, PostMethod, Contract.toJsonString(jsonEntity), contentType, timeout);
+        return openAsync(url, PostMethod, null, out -> Contract.writeJsonTo(out, jsonEntity), contentType,
+                timeout);
+    }
+
+    private <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw SystemException.wrap(ex);
+        } catch (ExecutionException ex) {
+            throw SystemException.wrap(ex.getCause());
+        }
+    }
+
+    private CompletableFuture<String> readAsync(CompletableFuture<Tuple<InputStream, String>> future) {
+        return future.thenApply(p -> {
+            //decodes straight from the socket, no byte copy of the body
+            StringBuilder result = new StringBuilder();
+            try (Reader reader = new InputStreamReader(p.left, p.right)) {
+                char[] buffer = new char[Const.DefaultBufferSize * 4];
+                int read;
+                while ((read = reader.read(buffer)) >= 0) {
+                    result.append(buffer, 0, read);
+                }
+            } catch (IOException ex) {
+                throw SystemException.wrap(ex);
+            }
+            return result.toString();
+        });
+    }
+
+    private CompletableFuture<Tuple<InputStream, String>> openAsync(String url, String method, byte[] content,
+                                                                    HttpEngine.ContentWriter writer,
+                                                                    String contentType, int timeout) {
+        if (proxyHost != null || !url.regionMatches(true, 0, "http:", 0, 5)) {
+            CompletableFuture<Tuple<InputStream, String>> future = new CompletableFuture<>();
+            AsyncTask.VirtualFactory.run(() -> {
+                try {
+                    future.complete(open(url, method, content, writer, contentType, timeout));
+                } catch (Throwable ex) {
+                    future.completeExceptionally(ex);
+                }
+            }, "HttpClient");
+            return future;
+        }
+
+        String charset = Const.Utf8;
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("User-Agent", UserAgent);
+        headers.put("Accept-Charset", charset);
+        if (!App.isNullOrEmpty(contentType)) {
+            headers.put("Content-Type", contentType + ";charset=" + charset);
+        }
+        CompletableFuture<HttpEngine.Response> future = writer != null
+                ? engine.openAsync(method, url, headers, writer, timeout)
+                : engine.openAsync(method, url, headers, content, timeout);
+        return future.thenApply(p -> {
+            try {
+                checkResponse(url, p.getStatusCode());
+            } catch (SystemException ex) {
+                p.close();
+                throw ex;
+            }
+            return Tuple.of(p.getStream(), p.getCharset());
+        });
+    }
+
+    @ErrorCode(messageKeys = { "$url", "$code" })
+    private void checkResponse(String url, int resCode) {
+        if (resCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+            throw new SystemException(values(url, resCode));
+        }
     }
 
-    private String exec(String url, String method, String content, String contentType, int timeout) {
+    private Tuple<InputStream, String> open(String url, String method, byte[] content,
+                                            HttpEngine.ContentWriter writer, String contentType, int timeout) {
         String charset = Const.Utf8;
         try {
             URL uri = new URL(url);
@@ -134,6 +291,9 @@ public class HttpClient {
             client.setUseCaches(false);
             client.setRequestProperty("User-Agent", UserAgent);
             client.setRequestProperty("Accept-Charset", charset);
+            if (engine.isDecompress()) {
+                client.setRequestProperty("Accept-Encoding", "gzip, deflate");
+            }
             client.setRequestMethod(method);
             if (!App.isNullOrEmpty(contentType)) {
                 client.setRequestProperty("Content-Type", contentType + ";charset=" + charset);
@@ -142,16 +302,29 @@ public class HttpClient {
                 client.setConnectTimeout(timeout);
                 client.setReadTimeout(timeout);
             }
+            if (writer != null) {
+                client.setChunkedStreamingMode(0);
+            }
             client.connect();
-            if (eq(method, PostMethod) && !App.isNullOrEmpty(content)) {
-                App.writeString(client.getOutputStream(), content, charset);
+            if (eq(method, PostMethod) && (writer != null || content != null && content.length > 0)) {
+                try (OutputStream out = client.getOutputStream()) {
+                    if (writer != null) {
+                        writer.writeTo(out);
+                    } else {
+                        out.write(content);
+                    }
+                }
             }
 
             int resCode = client.getResponseCode();
-            if (resCode != HttpURLConnection.HTTP_OK) {
-
+            checkResponse(url, resCode);
+            InputStream in = client.getInputStream();
+            String encoding = client.getContentEncoding();
+            if (engine.isDecompress() && encoding != null && client.getContentLengthLong() != 0
+                    && resCode != HttpURLConnection.HTTP_NO_CONTENT && resCode != HttpURLConnection.HTTP_NOT_MODIFIED) {
+                in = HttpEngine.decode(in, encoding);
             }
-            return App.readString(client.getInputStream(), isNull(client.getContentEncoding(), charset));
+            return Tuple.of(in, HttpEngine.charsetOf(client.getContentType()));
         } catch (Exception ex) {
             throw SystemException.wrap(ex);
         }
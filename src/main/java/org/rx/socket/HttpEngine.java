@@ -0,0 +1,837 @@
+package org.rx.socket;
+
+import org.rx.App;
+import org.rx.Logger;
+import org.rx.SystemException;
+import org.rx.bean.Const;
+import org.rx.util.AsyncTask;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static org.rx.Contract.require;
+
+/**
+ * HTTP/1.1 client over keep-alive sockets from its own SocketPool, so the pool limits apply per host. One exchange
+ * runs on a socket at a time and reads block a virtual thread where available. Bodies stream both ways, gzip and
+ * deflate responses are decoded. Plain http only.
+ */
+public final class HttpEngine extends Traceable implements AutoCloseable {
+    /**
+     * Streams the body from the socket or holds it after reading, close it to free the socket early.
+     */
+    public static final class Response implements AutoCloseable {
+        private final int                 statusCode;
+        private final String              reasonPhrase;
+        private final Map<String, String> headers;
+        private final InputStream         stream;
+        private byte[]                    body;
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        public String getReasonPhrase() {
+            return reasonPhrase;
+        }
+
+        /**
+         * Case insensitive, repeated headers are joined by comma. Content-Encoding and Content-Length are removed when
+         * the body is decoded.
+         */
+        public Map<String, String> getHeaders() {
+            return headers;
+        }
+
+        public String getHeader(String name) {
+            return headers.get(name);
+        }
+
+        /**
+         * The decoded body, the socket returns to the pool once it is read to the end or closed.
+         */
+        public InputStream getStream() {
+            return body != null ? new ByteArrayInputStream(body) : stream;
+        }
+
+        /**
+         * Reads the rest of the stream on first call.
+         */
+        public byte[] getBody() {
+            if (body == null) {
+                ByteArrayOutputStream result = new ByteArrayOutputStream();
+                try (InputStream in = stream) {
+                    byte[] buffer = new byte[BufferSize];
+                    int read;
+                    while ((read = in.read(buffer)) >= 0) {
+                        result.write(buffer, 0, read);
+                    }
+                } catch (IOException ex) {
+                    throw SystemException.wrap(ex);
+                }
+                body = result.toByteArray();
+            }
+            return body;
+        }
+
+        /**
+         * From the Content-Type charset parameter, UTF-8 if absent.
+         */
+        public String getCharset() {
+            return charsetOf(headers.get("Content-Type"));
+        }
+
+        public String getString() {
+            try {
+                return new String(getBody(), getCharset());
+            } catch (UnsupportedEncodingException ex) {
+                throw SystemException.wrap(ex);
+            }
+        }
+
+        private Response(int statusCode, String reasonPhrase, Map<String, String> headers, InputStream stream) {
+            this.statusCode = statusCode;
+            this.reasonPhrase = reasonPhrase;
+            this.headers = headers;
+            this.stream = stream;
+        }
+
+        @Override
+        public void close() {
+            try {
+                stream.close();
+            } catch (IOException ex) {
+                Logger.debug("Response close: %s", ex);
+            }
+        }
+    }
+
+    /**
+     * Writes a request body of unknown length, sent chunked. Retries and 307/308 redirects call it again.
+     */
+    @FunctionalInterface
+    public interface ContentWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private static final class Request {
+        private final String              method;
+        private final URL                 url;
+        private final Map<String, String> headers;
+        private final byte[]              content;
+        private final ContentWriter       writer;
+        private final int                 timeout;
+        private final boolean             buffered;
+        private final int                 redirects;
+        private boolean                   retry;
+
+        private Request(String method, URL url, Map<String, String> headers, byte[] content, ContentWriter writer,
+                        int timeout, boolean buffered, int redirects) {
+            this.method = method;
+            this.url = url;
+            this.headers = headers;
+            this.content = content;
+            this.writer = writer;
+            this.timeout = timeout;
+            this.buffered = buffered;
+            this.redirects = redirects;
+            retry = true;
+        }
+    }
+
+    /**
+     * The peer closed or reset before answering, a stale keep-alive socket most of the time.
+     */
+    private static final class NoResponseException extends IOException {
+        private NoResponseException(Throwable cause) {
+            super(cause);
+        }
+    }
+
+    /**
+     * Reads up to the declared length.
+     */
+    private static final class FixedLengthStream extends InputStream {
+        private final InputStream in;
+        private long              remaining;
+
+        private FixedLengthStream(InputStream in, long length) {
+            this.in = in;
+            remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read < 0) {
+                throw new IOException("Unexpected end of body, " + remaining + " bytes missing");
+            }
+            remaining -= read;
+            return read;
+        }
+    }
+
+    /**
+     * Decodes Transfer-Encoding chunked, trailers are skipped.
+     */
+    private static final class ChunkedStream extends InputStream {
+        private final InputStream in;
+        private long              remaining;
+        private boolean           eof;
+
+        private ChunkedStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (eof) {
+                return -1;
+            }
+            if (remaining == 0) {
+                String line = readLine(in);
+                int ext = line.indexOf(';');
+                try {
+                    remaining = Long.parseLong((ext < 0 ? line : line.substring(0, ext)).trim(), 16);
+                } catch (NumberFormatException ex) {
+                    throw new IOException("Bad chunk size " + line);
+                }
+                if (remaining == 0) {
+                    String trailer;
+                    do {
+                        trailer = readLine(in);
+                    } while (!trailer.isEmpty());
+                    eof = true;
+                    return -1;
+                }
+            }
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read < 0) {
+                throw new IOException("Unexpected end of chunk");
+            }
+            remaining -= read;
+            if (remaining == 0) {
+                readLine(in);
+            }
+            return read;
+        }
+    }
+
+    /**
+     * Frames the request body into chunks of the buffer size.
+     */
+    private static final class ChunkedOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final byte[]       buffer;
+        private int                count;
+        private boolean            finished;
+
+        private ChunkedOutputStream(OutputStream out) {
+            this.out = out;
+            buffer = new byte[BufferSize];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                writeChunk(buffer, 0, count);
+                count = 0;
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (count + len <= buffer.length) {
+                System.arraycopy(b, off, buffer, count, len);
+                count += len;
+                return;
+            }
+            writeChunk(buffer, 0, count);
+            count = 0;
+            if (len >= buffer.length) {
+                writeChunk(b, off, len);
+                return;
+            }
+            System.arraycopy(b, off, buffer, 0, len);
+            count = len;
+        }
+
+        private void writeChunk(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            out.write((Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.write(b, off, len);
+            out.write(Crlf);
+        }
+
+        /**
+         * Writes the last chunk, the socket stays open.
+         */
+        @Override
+        public void close() throws IOException {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            writeChunk(buffer, 0, count);
+            count = 0;
+            out.write(LastChunk);
+        }
+    }
+
+    /**
+     * The framed body of one exchange. The socket goes back to the pool at the end of the body, closing earlier drains
+     * a small rest or drops the socket.
+     */
+    private static final class BodyStream extends InputStream {
+        private final SocketPool.PooledSocket socket;
+        private final InputStream             framed;
+        private final boolean                 keepAlive;
+        private boolean                       eof, released;
+
+        private BodyStream(SocketPool.PooledSocket socket, InputStream framed, boolean keepAlive) {
+            this.socket = socket;
+            this.framed = framed;
+            this.keepAlive = keepAlive;
+            if (framed == null) {
+                eof = true;
+                release();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (eof) {
+                return -1;
+            }
+            if (released) {
+                throw new IOException("Stream closed");
+            }
+            int read;
+            try {
+                read = framed.read(b, off, len);
+            } catch (IOException ex) {
+                release();
+                throw ex;
+            }
+            if (read < 0) {
+                eof = true;
+                release();
+            }
+            return read;
+        }
+
+        @Override
+        public void close() {
+            if (released) {
+                return;
+            }
+            if (keepAlive) {
+                try {
+                    byte[] buffer = new byte[BufferSize];
+                    for (int total = 0; total < DrainLimit; ) {
+                        int read = framed.read(buffer);
+                        if (read < 0) {
+                            eof = true;
+                            break;
+                        }
+                        total += read;
+                    }
+                } catch (IOException ex) {
+                    //dropped below
+                }
+            }
+            release();
+        }
+
+        private void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+            if (!eof || !keepAlive) {
+                Sockets.close(socket.socket);
+            }
+            socket.close();
+        }
+    }
+
+    public static final HttpEngine Default           = new HttpEngine();
+    private static final int       DefaultMaxPerHost = 8;
+    private static final int       MaxRedirects      = 5;
+    private static final int       MaxLineLength     = 8192;
+    private static final int       BufferSize        = 8192;
+    private static final int       DrainLimit        = 65536;
+    private static final String    AcceptEncoding    = "gzip, deflate";
+    private static final byte[]    Crlf              = { '\r', '\n' };
+    private static final byte[]    LastChunk         = { '0', '\r', '\n', '\r', '\n' };
+    private final SocketPool       pool;
+    private volatile boolean       followRedirects, decompress;
+
+    /**
+     * Keep-alive sockets, exposed for metrics and the remaining limits.
+     */
+    public SocketPool getPool() {
+        return pool;
+    }
+
+    public int getMaxPerHost() {
+        return pool.getMaxPerRoute();
+    }
+
+    /**
+     * Concurrent connections per resolved host address, requests over it wait in the pool queue.
+     */
+    public void setMaxPerHost(int maxPerHost) {
+        pool.setMaxPerRoute(maxPerHost);
+    }
+
+    public boolean isFollowRedirects() {
+        return followRedirects;
+    }
+
+    public void setFollowRedirects(boolean followRedirects) {
+        this.followRedirects = followRedirects;
+    }
+
+    public boolean isDecompress() {
+        return decompress;
+    }
+
+    /**
+     * Asks for gzip or deflate unless the request sets Accept-Encoding itself, and decodes the body.
+     */
+    public void setDecompress(boolean decompress) {
+        this.decompress = decompress;
+    }
+
+    public HttpEngine() {
+        pool = new SocketPool();
+        pool.setMaxPerRoute(DefaultMaxPerHost);
+        followRedirects = true;
+        decompress = true;
+        Logger tracer = new Logger();
+        tracer.setPrefix("HttpEngine ");
+        setTracer(tracer);
+    }
+
+    @Override
+    protected void freeUnmanaged() {
+        pool.close();
+    }
+
+    /**
+     * Completes once the whole body is read. Redirects are followed within http, a failed idempotent request on a
+     * stale socket is retried once on a new one.
+     *
+     * @param timeout connect excluded, App.TimeoutInfinite for none
+     */
+    public CompletableFuture<Response> sendAsync(String method, String url, Map<String, String> headers,
+                                                 byte[] content, int timeout) {
+        return submit(method, url, headers, content, null, timeout, true);
+    }
+
+    public CompletableFuture<Response> sendAsync(String method, String url, Map<String, String> headers,
+                                                 ContentWriter content, int timeout) {
+        return submit(method, url, headers, null, content, timeout, true);
+    }
+
+    /**
+     * Completes after the headers, the caller reads or closes the response stream.
+     */
+    public CompletableFuture<Response> openAsync(String method, String url, Map<String, String> headers,
+                                                 byte[] content, int timeout) {
+        return submit(method, url, headers, content, null, timeout, false);
+    }
+
+    public CompletableFuture<Response> openAsync(String method, String url, Map<String, String> headers,
+                                                 ContentWriter content, int timeout) {
+        return submit(method, url, headers, null, content, timeout, false);
+    }
+
+    private CompletableFuture<Response> submit(String method, String url, Map<String, String> headers,
+                                               byte[] content, ContentWriter writer, int timeout, boolean buffered) {
+        checkNotClosed();
+        require(method, url);
+
+        //a bad url fails the future like any other error
+        CompletableFuture<Response> future = new CompletableFuture<>();
+        URL uri;
+        try {
+            uri = new URL(url);
+            require(uri, "http".equals(uri.getProtocol()));
+        } catch (MalformedURLException | SystemException ex) {
+            future.completeExceptionally(SystemException.wrap(ex));
+            return future;
+        }
+        send(future, new Request(method, uri, headers == null ? Collections.emptyMap() : headers, content, writer,
+                timeout, buffered, 0));
+        return future;
+    }
+
+    private void send(CompletableFuture<Response> future, Request request) {
+        URL url = request.url;
+        int port = port(url);
+        pool.borrowSocketAsync(url.getHost(), port).whenComplete((socket, e) -> {
+            if (e != null) {
+                future.completeExceptionally(e);
+                return;
+            }
+            AsyncTask.VirtualFactory.run(() -> {
+                Response response;
+                try {
+                    response = exchange(socket, request);
+                } catch (Throwable ex) {
+                    Sockets.close(socket.socket);
+                    socket.close();
+                    if (request.retry && ex instanceof NoResponseException && isIdempotent(request.method)) {
+                        getTracer().writeLine("retry %s %s on a new socket..", request.method, url);
+                        request.retry = false;
+                        send(future, request);
+                        return;
+                    }
+                    future.completeExceptionally(SystemException.wrap(ex));
+                    return;
+                }
+
+                String location = response.getHeader("Location");
+                if (followRedirects && isRedirect(response.statusCode) && location != null
+                        && request.redirects < MaxRedirects) {
+                    URL next = null;
+                    try {
+                        next = new URL(url, location);
+                    } catch (MalformedURLException ex) {
+                        Logger.debug("HttpEngine redirect: %s", ex);
+                    }
+                    if (next != null && "http".equals(next.getProtocol())) {
+                        response.close();
+                        //like browsers, only 307 and 308 resend the body, HEAD stays HEAD
+                        boolean resend = response.statusCode == 307 || response.statusCode == 308;
+                        String method = resend || "HEAD".equals(request.method) ? request.method : "GET";
+                        send(future, new Request(method, next, redirectHeaders(request, next),
+                                resend ? request.content : null, resend ? request.writer : null, request.timeout,
+                                request.buffered, request.redirects + 1));
+                        return;
+                    }
+                }
+                if (request.buffered) {
+                    try {
+                        response.getBody();
+                    } catch (Throwable ex) {
+                        future.completeExceptionally(ex);
+                        return;
+                    }
+                }
+                if (!future.complete(response)) {
+                    response.close();
+                }
+            }, "HttpEngine");
+        });
+    }
+
+    private Response exchange(SocketPool.PooledSocket socket, Request request) throws IOException {
+        socket.socket.setTcpNoDelay(true);
+        socket.socket.setSoTimeout(request.timeout > App.TimeoutInfinite ? request.timeout : 0);
+        boolean decode = decompress && !hasHeader(request.headers, "Accept-Encoding");
+        InputStream in;
+        String statusLine;
+        try {
+            writeRequest(socket.socket.getOutputStream(), request, decode);
+            //nothing follows a response before the next request, buffering per exchange is safe
+            in = new BufferedInputStream(socket.socket.getInputStream(), BufferSize);
+            statusLine = readLine(in);
+        } catch (SocketTimeoutException ex) {
+            throw ex;
+        } catch (IOException ex) {
+            throw new NoResponseException(ex);
+        }
+
+        Map<String, String> resHeaders;
+        String[] status;
+        int code;
+        while (true) {
+            status = statusLine.split(" ", 3);
+            if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+                throw new IOException("Bad status line " + statusLine);
+            }
+            try {
+                code = Integer.parseInt(status[1]);
+            } catch (NumberFormatException ex) {
+                throw new IOException("Bad status line " + statusLine);
+            }
+            resHeaders = readHeaders(in);
+            //skips interim responses like 100 Continue
+            if (code >= 200 || code == 101) {
+                break;
+            }
+            statusLine = readLine(in);
+        }
+
+        boolean keepAlive = "HTTP/1.1".equals(status[0]) ? !hasToken(resHeaders.get("Connection"), "close")
+                : hasToken(resHeaders.get("Connection"), "keep-alive");
+        InputStream framed;
+        String length = resHeaders.get("Content-Length");
+        if ("HEAD".equals(request.method) || code < 200 || code == 204 || code == 304) {
+            framed = null;
+        } else if (hasToken(resHeaders.get("Transfer-Encoding"), "chunked")) {
+            framed = new ChunkedStream(in);
+        } else if (length != null) {
+            try {
+                framed = new FixedLengthStream(in, Long.parseLong(length.trim()));
+            } catch (NumberFormatException ex) {
+                throw new IOException("Bad Content-Length " + length);
+            }
+        } else {
+            //delimited by close
+            framed = in;
+            keepAlive = false;
+        }
+
+        InputStream body = new BodyStream(socket, framed, keepAlive);
+        String encoding = resHeaders.get("Content-Encoding");
+        if (decode && framed != null && encoding != null && !"0".equals(length)) {
+            try {
+                body = decode(body, encoding);
+            } catch (IOException ex) {
+                body.close();
+                throw ex;
+            }
+            if (body instanceof InflaterInputStream) {
+                resHeaders.remove("Content-Encoding");
+                resHeaders.remove("Content-Length");
+            }
+        }
+        return new Response(code, status.length > 2 ? status[2] : "", resHeaders, body);
+    }
+
+    private void writeRequest(OutputStream socketOut, Request request, boolean decode) throws IOException {
+        URL url = request.url;
+        String path = url.getFile();
+        StringBuilder head = new StringBuilder(256);
+        head.append(request.method).append(' ').append(path.isEmpty() ? "/" : path).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(url.getHost());
+        if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+            head.append(':').append(url.getPort());
+        }
+        head.append("\r\n");
+        for (Map.Entry<String, String> header : request.headers.entrySet()) {
+            //framing is written below, a caller copy would desync the keep-alive socket
+            if (isFramingHeader(header.getKey()) || (decode && "Accept-Encoding".equalsIgnoreCase(header.getKey()))) {
+                continue;
+            }
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        if (decode) {
+            head.append("Accept-Encoding: ").append(AcceptEncoding).append("\r\n");
+        }
+        if (request.content != null) {
+            head.append("Content-Length: ").append(request.content.length).append("\r\n");
+        } else if (request.writer != null) {
+            head.append("Transfer-Encoding: chunked\r\n");
+        }
+        head.append("\r\n");
+
+        //head and small bodies leave in one segment
+        OutputStream out = new BufferedOutputStream(socketOut, BufferSize);
+        out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        if (request.content != null) {
+            out.write(request.content);
+        } else if (request.writer != null) {
+            ChunkedOutputStream chunked = new ChunkedOutputStream(out);
+            request.writer.writeTo(chunked);
+            chunked.close();
+        }
+        out.flush();
+    }
+
+    /**
+     * Wraps the body by its Content-Encoding, unknown codings are left as is.
+     */
+    static InputStream decode(InputStream in, String contentEncoding) throws IOException {
+        switch (contentEncoding.trim().toLowerCase()) {
+            case "gzip":
+            case "x-gzip":
+                return new GZIPInputStream(in, BufferSize);
+            case "deflate":
+                //zlib wrapped by the spec, some servers send it raw
+                PushbackInputStream pin = new PushbackInputStream(in, 2);
+                byte[] header = new byte[2];
+                int n = 0, read;
+                while (n < 2 && (read = pin.read(header, n, 2 - n)) >= 0) {
+                    n += read;
+                }
+                pin.unread(header, 0, n);
+                boolean zlib = n == 2 && (header[0] & 0x0f) == 8
+                        && ((header[0] & 0xff) << 8 | (header[1] & 0xff)) % 31 == 0;
+                Inflater inflater = new Inflater(!zlib);
+                return new InflaterInputStream(pin, inflater, BufferSize) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            inflater.end();
+                        }
+                    }
+                };
+            default:
+                return in;
+        }
+    }
+
+    static String charsetOf(String contentType) {
+        if (contentType != null) {
+            for (String param : contentType.split(";")) {
+                param = param.trim();
+                if (param.regionMatches(true, 0, "charset=", 0, 8)) {
+                    return param.substring(8).replace("\"", "").trim();
+                }
+            }
+        }
+        return Const.Utf8;
+    }
+
+    private static boolean hasHeader(Map<String, String> headers, String name) {
+        for (String key : headers.keySet()) {
+            if (key.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Map<String, String> readHeaders(InputStream in) throws IOException {
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        String line;
+        while (!(line = readLine(in)).isEmpty()) {
+            int i = line.indexOf(':');
+            if (i <= 0) {
+                throw new IOException("Bad header " + line);
+            }
+            String name = line.substring(0, i).trim(), value = line.substring(i + 1).trim();
+            headers.merge(name, value, (p1, p2) -> p1 + ", " + p2);
+        }
+        return headers;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new IOException("Unexpected end of stream");
+            }
+            if (line.length() == MaxLineLength) {
+                throw new IOException("Line exceeds " + MaxLineLength + " bytes");
+            }
+            line.append((char) b);
+        }
+        int end = line.length();
+        if (end > 0 && line.charAt(end - 1) == '\r') {
+            line.setLength(end - 1);
+        }
+        return line.toString();
+    }
+
+    private static boolean hasToken(String header, String token) {
+        if (header == null) {
+            return false;
+        }
+        for (String value : header.split(",")) {
+            if (value.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Credentials are meant for one origin, a redirect to another host or port drops them.
+     */
+    private static Map<String, String> redirectHeaders(Request request, URL next) {
+        URL url = request.url;
+        if (url.getHost().equalsIgnoreCase(next.getHost()) && port(url) == port(next)) {
+            return request.headers;
+        }
+        Map<String, String> headers = new LinkedHashMap<>(request.headers.size());
+        for (Map.Entry<String, String> entry : request.headers.entrySet()) {
+            if (!isCredentialHeader(entry.getKey())) {
+                headers.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return headers;
+    }
+
+    private static int port(URL url) {
+        return url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+    }
+
+    private static boolean isFramingHeader(String name) {
+        return "Host".equalsIgnoreCase(name) || "Content-Length".equalsIgnoreCase(name)
+                || "Transfer-Encoding".equalsIgnoreCase(name);
+    }
+
+    private static boolean isCredentialHeader(String name) {
+        return "Authorization".equalsIgnoreCase(name) || "Proxy-Authorization".equalsIgnoreCase(name)
+                || "Cookie".equalsIgnoreCase(name);
+    }
+
+    private static boolean isRedirect(int code) {
+        return code == 301 || code == 302 || code == 303 || code == 307 || code == 308;
+    }
+
+    private static boolean isIdempotent(String method) {
+        switch (method) {
+            case "GET":
+            case "HEAD":
+            case "PUT":
+            case "DELETE":
+            case "OPTIONS":
+                return true;
+            default:
+                return false;
+        }
+    }
+}
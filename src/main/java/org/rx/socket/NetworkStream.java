@@ -1,11 +1,14 @@
 package org.rx.socket;
 
 import org.rx.Logger;
+import org.rx.SystemException;
 import org.rx.cache.BytesSegment;
 import org.rx.util.IOStream;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 
 import static org.rx.Contract.require;
 import static org.rx.socket.Sockets.shutdown;
@@ -75,6 +78,44 @@ public final class NetworkStream extends IOStream {
         }
     }
 
+    /**
+     * Goes straight through the socket channel when the socket was opened by a SocketChannel.
+     */
+    @Override
+    public int read(ByteBuffer dst) {
+        SocketChannel channel = socket.getChannel();
+        if (channel == null) {
+            return super.read(dst);
+        }
+        checkNotClosed();
+        require(dst);
+
+        try {
+            return channel.read(dst);
+        } catch (IOException ex) {
+            throw SystemException.wrap(ex);
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer src) {
+        SocketChannel channel = socket.getChannel();
+        if (channel == null) {
+            super.write(src);
+            return;
+        }
+        checkNotClosed();
+        require(src);
+
+        try {
+            while (src.hasRemaining()) {
+                channel.write(src);
+            }
+        } catch (IOException ex) {
+            throw SystemException.wrap(ex);
+        }
+    }
+
     int readSegment() {
         return read(segment.array, segment.offset, segment.count);
     }
@@ -88,7 +129,9 @@ public final class NetworkStream extends IOStream {
         require(to);
 
         int recv = StreamEOF;
-        while (canRead() && (recv = read(segment.array, segment.offset, segment.count)) >= -1) {
+        //blocks on read, canRead() would stop as soon as nothing is buffered
+        while (!isClosed() && checkSocket(socket, false)
+                && (recv = read(segment.array, segment.offset, segment.count)) >= -1) {
             if (recv <= 0) {
                 if (ownsSocket) {
                     Logger.debug("DirectTo read %s flag and shutdown send", recv);
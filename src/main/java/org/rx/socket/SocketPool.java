@@ -1,25 +1,47 @@
 package org.rx.socket;
 
-import org.rx.NQuery;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.rx.Logger;
+import org.rx.SystemException;
 import org.rx.bean.DateTime;
+import org.rx.util.AsyncTask;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.Inet6Address;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import org.rx.Logger;
-
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static org.rx.Contract.require;
 
+/**
+ * Bounded socket pool keyed by endpoint. A socket counts against maxTotal and maxPerRoute while idle, leased or
+ * connecting. Borrowers over the limit wait in FIFO order up to borrowTimeout, connects run off the borrowing thread.
+ * Borrowing by host balances over its resolved addresses and skips the ones ejected after failed connects.
+ */
 public final class SocketPool extends Traceable implements AutoCloseable {
     public static final class PooledSocket implements AutoCloseable {
         private final SocketPool owner;
+        private final Route      route;
         private DateTime         lastActive;
+        private boolean          leased;
         public final Socket      socket;
 
         public boolean isConnected() {
@@ -34,8 +56,9 @@ public final class SocketPool extends Traceable implements AutoCloseable {
             this.lastActive = lastActive;
         }
 
-        private PooledSocket(SocketPool owner, Socket socket) {
+        private PooledSocket(SocketPool owner, Route route, Socket socket) {
             this.owner = owner;
+            this.route = route;
             this.socket = socket;
             lastActive = DateTime.utcNow();
         }
@@ -46,16 +69,91 @@ public final class SocketPool extends Traceable implements AutoCloseable {
         }
     }
 
-    public static final SocketPool                                                          Pool                   = new SocketPool();
-    private static final int                                                                DefaultConnectTimeout  = 30000;
-    private static final int                                                                DefaultMaxIdleMillis   = 120000;
-    private static final int                                                                DefaultMaxSocketsCount = 64;
-    private final ConcurrentHashMap<InetSocketAddress, ConcurrentLinkedDeque<PooledSocket>> pool;
-    private volatile int                                                                    connectTimeout;
-    private volatile int                                                                    maxIdleMillis;
-    private volatile int                                                                    maxSocketsCount;
-    private final Timer                                                                     timer;
-    private volatile boolean                                                                isTimerRun;
+    private static final class Route {
+        private final InetSocketAddress        address;
+        private final ArrayDeque<PooledSocket> idle;
+        private int                            leased, connecting, failures;
+        private long                           ejectedUntil;
+
+        private Route(InetSocketAddress address) {
+            this.address = address;
+            idle = new ArrayDeque<>();
+        }
+
+        private int count() {
+            return idle.size() + leased + connecting;
+        }
+
+        private int outstanding() {
+            return leased + connecting;
+        }
+
+        private boolean isEjected(long now) {
+            return ejectedUntil > now;
+        }
+
+        /**
+         * Health outlives the sockets, an ejected route is kept until its ejection ends.
+         */
+        private boolean isRemovable(long now) {
+            return count() == 0 && !isEjected(now);
+        }
+    }
+
+    /**
+     * Happy eyeballs over the addresses of one host: attempts start AttemptDelay apart or right after a failure, the
+     * first connected socket wins and later winners go idle.
+     */
+    private static final class Race {
+        private final List<InetSocketAddress>         candidates;
+        private final CompletableFuture<PooledSocket> future;
+        private int                                   next, running;
+        private IOException                           lastError;
+
+        private Race(List<InetSocketAddress> candidates) {
+            this.candidates = candidates;
+            future = new CompletableFuture<>();
+        }
+    }
+
+    private static final class Waiter {
+        private final InetSocketAddress               address;
+        private final CompletableFuture<PooledSocket> future;
+        private ScheduledFuture<?>                    timeout;
+        private boolean                               timedOut;
+
+        private Waiter(InetSocketAddress address) {
+            this.address = address;
+            future = new CompletableFuture<>();
+        }
+    }
+
+    public static final SocketPool                Pool                   = new SocketPool();
+    private static final int                      DefaultConnectTimeout  = 30000;
+    private static final int                      DefaultMaxIdleMillis   = 120000;
+    private static final int                      DefaultMaxSocketsCount = 64;
+    private static final int                      DefaultMaxTotal        = 512;
+    private static final int                      DefaultBorrowTimeout   = 30000;
+    private static final int                      DefaultValidateMillis  = 2000;
+    private static final int                      SweepPeriod            = 30000;
+    private static final int                      MaintainPeriod         = 5000;
+    private static final int                      AttemptDelay           = 250;
+    private static final int                      EjectMillis            = 1000;
+    private static final int                      MaxEjectMillis         = 30000;
+    private final ReentrantLock                   lock;
+    private final Map<InetSocketAddress, Route>   routes;
+    private final Map<InetSocketAddress, Integer> minIdle;
+    private final ArrayDeque<Waiter>              waiters;
+    private final ScheduledThreadPoolExecutor     scheduler;
+    private final LongAdder                       connectCount, connectFailureCount, connectNanos;
+    private int                                   leasedCount, idleCount, connectingCount;
+    private volatile int                          connectTimeout;
+    private volatile int                          maxIdleMillis;
+    private volatile int                          maxSocketsCount;
+    private volatile int                          maxTotal;
+    private volatile int                          maxPerRoute;
+    private volatile int                          borrowTimeout;
+    private volatile int                          validateAfterInactivity;
 
     public int getConnectTimeout() {
         return connectTimeout;
@@ -76,6 +174,9 @@ public final class SocketPool extends Traceable implements AutoCloseable {
         this.maxIdleMillis = maxIdleMillis;
     }
 
+    /**
+     * Max idle sockets kept per endpoint, extra returns are closed.
+     */
     public int getMaxSocketsCount() {
         return maxSocketsCount;
     }
@@ -87,13 +188,148 @@ public final class SocketPool extends Traceable implements AutoCloseable {
         this.maxSocketsCount = maxSocketsCount;
     }
 
-    private SocketPool() {
-        pool = new ConcurrentHashMap<>();
+    public int getMaxTotal() {
+        return maxTotal;
+    }
+
+    public void setMaxTotal(int maxTotal) {
+        require(maxTotal, maxTotal > 0);
+
+        this.maxTotal = maxTotal;
+    }
+
+    /**
+     * Max idle, leased and connecting sockets per endpoint.
+     */
+    public int getMaxPerRoute() {
+        return maxPerRoute;
+    }
+
+    public void setMaxPerRoute(int maxPerRoute) {
+        require(maxPerRoute, maxPerRoute > 0);
+
+        this.maxPerRoute = maxPerRoute;
+    }
+
+    public int getBorrowTimeout() {
+        return borrowTimeout;
+    }
+
+    public void setBorrowTimeout(int borrowTimeout) {
+        require(borrowTimeout, borrowTimeout > 0);
+
+        this.borrowTimeout = borrowTimeout;
+    }
+
+    /**
+     * Sockets idle longer than this are probed for a peer close before they are handed out.
+     */
+    public int getValidateAfterInactivity() {
+        return validateAfterInactivity;
+    }
+
+    public void setValidateAfterInactivity(int validateAfterInactivity) {
+        this.validateAfterInactivity = validateAfterInactivity;
+    }
+
+    public int getMinIdle(InetSocketAddress remoteAddr) {
+        require(remoteAddr);
+
+        return minIdle.getOrDefault(remoteAddr, 0);
+    }
+
+    /**
+     * Connected idle sockets the maintainer keeps ready for the endpoint, bounded by maxSocketsCount, maxPerRoute and
+     * maxTotal. Zero stops maintaining it.
+     */
+    public void setMinIdle(InetSocketAddress remoteAddr, int minIdle) {
+        require(remoteAddr);
+        require(minIdle, minIdle >= 0);
+
+        if (minIdle == 0) {
+            this.minIdle.remove(remoteAddr);
+            return;
+        }
+        this.minIdle.put(remoteAddr, minIdle);
+    }
+
+    public int getLeasedCount() {
+        lock.lock();
+        try {
+            return leasedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getIdleCount() {
+        lock.lock();
+        try {
+            return idleCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getConnectingCount() {
+        lock.lock();
+        try {
+            return connectingCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Borrowers waiting for a free slot.
+     */
+    public int getPendingCount() {
+        lock.lock();
+        try {
+            return waiters.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getConnectCount() {
+        return connectCount.sum();
+    }
+
+    public long getConnectFailureCount() {
+        return connectFailureCount.sum();
+    }
+
+    /**
+     * Average latency of successful connects.
+     */
+    public double getConnectMillis() {
+        long count = connectCount.sum();
+        return count == 0 ? 0 : connectNanos.sum() / 1000000d / count;
+    }
+
+    public SocketPool() {
+        lock = new ReentrantLock();
+        routes = new HashMap<>();
+        minIdle = new ConcurrentHashMap<>();
+        waiters = new ArrayDeque<>();
+        connectCount = new LongAdder();
+        connectFailureCount = new LongAdder();
+        connectNanos = new LongAdder();
         connectTimeout = DefaultConnectTimeout;
         maxIdleMillis = DefaultMaxIdleMillis;
         maxSocketsCount = DefaultMaxSocketsCount;
+        maxTotal = DefaultMaxTotal;
+        maxPerRoute = DefaultMaxSocketsCount;
+        borrowTimeout = DefaultBorrowTimeout;
+        validateAfterInactivity = DefaultValidateMillis;
         String n = "SocketPool";
-        timer = new Timer(n, true);
+        scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder().setDaemon(true)
+                .setUncaughtExceptionHandler((thread, ex) -> Logger.error(ex, thread.getName())).setNameFormat(n)
+                .build());
+        scheduler.setRemoveOnCancelPolicy(true);
+        scheduler.scheduleWithFixedDelay(this::clearIdleSockets, SweepPeriod, SweepPeriod, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::maintain, MaintainPeriod, MaintainPeriod, TimeUnit.MILLISECONDS);
         Logger tracer = new Logger();
         tracer.setPrefix(n + " ");
         tracer.writeLine("started..");
@@ -103,138 +339,714 @@ public final class SocketPool extends Traceable implements AutoCloseable {
     @Override
     protected void freeUnmanaged() {
         clear();
+        List<Waiter> pending;
+        lock.lock();
+        try {
+            pending = new ArrayList<>(waiters);
+            waiters.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (Waiter waiter : pending) {
+            waiter.future.completeExceptionally(new SocketException(waiter.address, "SocketPool closed"));
+        }
+        scheduler.shutdownNow();
     }
 
-    private void runTimer() {
-        if (isTimerRun) {
-            return;
+    private void clearIdleSockets() {
+        List<PooledSocket> expired = new ArrayList<>();
+        lock.lock();
+        try {
+            DateTime now = DateTime.utcNow();
+            for (Iterator<Route> routeIt = routes.values().iterator(); routeIt.hasNext(); ) {
+                Route route = routeIt.next();
+                for (Iterator<PooledSocket> it = route.idle.iterator(); it.hasNext(); ) {
+                    PooledSocket socket = it.next();
+                    if (!socket.isConnected()
+                            || now.subtract(socket.getLastActive()).getTotalMilliseconds() >= maxIdleMillis) {
+                        it.remove();
+                        idleCount--;
+                        expired.add(socket);
+                    }
+                }
+                if (route.isRemovable(System.currentTimeMillis())) {
+                    routeIt.remove();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (PooledSocket socket : expired) {
+            getTracer().writeLine("clear idle socket[local=%s, remote=%s]..", Sockets.getId(socket.socket, false),
+                    Sockets.getId(socket.socket, true));
+            closeSocket(socket);
+        }
+        if (!expired.isEmpty()) {
+            dispatch();
+            //culled sockets of maintained endpoints are replaced right away
+            maintain();
+        }
+    }
+
+    /**
+     * Sets the endpoint's min idle to count and connects the missing sockets now.
+     *
+     * @return completes when the started connects finish, exceptionally if one failed
+     */
+    public CompletableFuture<Void> prewarm(InetSocketAddress remoteAddr, int count) {
+        checkNotClosed();
+
+        setMinIdle(remoteAddr, count);
+        return maintain();
+    }
+
+    private CompletableFuture<Void> maintain() {
+        List<Route> dials = new ArrayList<>();
+        lock.lock();
+        try {
+            if (isClosed()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            for (Map.Entry<InetSocketAddress, Integer> entry : minIdle.entrySet()) {
+                Route route = getRoute(entry.getKey());
+                int need = Math.min(entry.getValue(), maxSocketsCount) - route.idle.size() - route.connecting;
+                need = Math.min(need, Math.min(maxPerRoute - route.count(), maxTotal - total()));
+                for (int i = 0; i < need; i++) {
+                    route.connecting++;
+                    connectingCount++;
+                    dials.add(route);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        CompletableFuture[] futures = new CompletableFuture[dials.size()];
+        for (int i = 0; i < futures.length; i++) {
+            futures[i] = connectIdle(dials.get(i));
         }
-        synchronized (timer) {
-            if (isTimerRun) {
+        return CompletableFuture.allOf(futures);
+    }
+
+    private CompletableFuture<Void> connectIdle(Route route) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        AsyncTask.VirtualFactory.run(() -> {
+            Socket sock;
+            try {
+                sock = dial(route);
+            } catch (IOException ex) {
+                Logger.debug("SocketPool prewarm %s: %s", route.address, ex.getMessage());
+                future.completeExceptionally(new SocketException(route.address, ex));
                 return;
             }
 
-            long period = 90000;
-            timer.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    clearIdleSockets();
+            PooledSocket socket = new PooledSocket(this, route, sock);
+            boolean keep = false;
+            lock.lock();
+            try {
+                route.connecting--;
+                connectingCount--;
+                if (!isClosed()) {
+                    route.idle.addFirst(socket);
+                    idleCount++;
+                    keep = true;
                 }
-            }, period, period);
-            isTimerRun = true;
+            } finally {
+                lock.unlock();
+            }
+            if (!keep) {
+                closeSocket(socket);
+            } else {
+                getTracer().writeLine("prewarm socket[local=%s, remote=%s]..", Sockets.getId(sock, false),
+                        Sockets.getId(sock, true));
+                dispatch();
+            }
+            future.complete(null);
+        }, "SocketPool[prewarm]");
+        return future;
+    }
+
+    /**
+     * Blocks until a socket is leased, the connect or the wait for a free slot timed out.
+     */
+    public PooledSocket borrowSocket(InetSocketAddress remoteAddr) {
+        return await(borrowSocketAsync(remoteAddr), remoteAddr);
+    }
+
+    private PooledSocket await(CompletableFuture<PooledSocket> future, InetSocketAddress remoteAddr) {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SocketException(remoteAddr, ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof SystemException) {
+                throw (SystemException) cause;
+            }
+            throw SystemException.wrap(cause);
         }
-        getTracer().writeLine("runTimer..");
     }
 
-    private void clearIdleSockets() {
-        for (Map.Entry<InetSocketAddress, ConcurrentLinkedDeque<PooledSocket>> entry : NQuery.of(pool.entrySet())) {
-            ConcurrentLinkedDeque<PooledSocket> sockets = entry.getValue();
-            if (sockets == null) {
-                continue;
-            }
-
-            for (PooledSocket socket : NQuery.of(sockets)) {
-                if (!socket.isConnected()
-                        || DateTime.utcNow().subtract(socket.getLastActive()).getTotalMilliseconds() >= maxIdleMillis) {
-                    sockets.remove(socket);
-                    getTracer().writeLine("clear idle socket[local=%s, remote=%s]..",
-                            Sockets.getId(socket.socket, false), Sockets.getId(socket.socket, true));
+    public CompletableFuture<PooledSocket> borrowSocketAsync(InetSocketAddress remoteAddr) {
+        checkNotClosed();
+        require(remoteAddr);
+
+        Waiter waiter = new Waiter(remoteAddr);
+        acquire(waiter);
+        return waiter.future;
+    }
+
+    /**
+     * Whether connects to the address failed recently, an ejected address is skipped by host borrows.
+     */
+    public boolean isEjected(InetSocketAddress remoteAddr) {
+        require(remoteAddr);
+
+        lock.lock();
+        try {
+            Route route = routes.get(remoteAddr);
+            return route != null && route.isEjected(System.currentTimeMillis());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public PooledSocket borrowSocket(String host, int port) {
+        return await(borrowSocketAsync(host, port), InetSocketAddress.createUnresolved(host, port));
+    }
+
+    public PooledSocket borrowSocket(List<InetSocketAddress> addresses) {
+        return await(borrowSocketAsync(addresses), addresses.get(0));
+    }
+
+    /**
+     * Pools per resolved address of the host, see borrowSocketAsync(List).
+     */
+    public CompletableFuture<PooledSocket> borrowSocketAsync(String host, int port) {
+        require(host);
+
+        InetAddress[] resolved = Sockets.getAddresses(host);
+        List<InetSocketAddress> addresses = new ArrayList<>(resolved.length);
+        for (InetAddress address : resolved) {
+            addresses.add(new InetSocketAddress(address, port));
+        }
+        return borrowSocketAsync(addresses);
+    }
+
+    /**
+     * Picks the less loaded of two random healthy addresses, leased plus connecting sockets being the load. An idle
+     * socket there is reused, otherwise connects race across the healthy addresses starting with the pick. When every
+     * address is ejected all of them are tried.
+     */
+    public CompletableFuture<PooledSocket> borrowSocketAsync(List<InetSocketAddress> addresses) {
+        checkNotClosed();
+        require(addresses, !addresses.isEmpty());
+
+        InetSocketAddress picked;
+        List<InetSocketAddress> candidates = null;
+        lock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            List<Route> healthy = new ArrayList<>(addresses.size());
+            for (InetSocketAddress address : addresses) {
+                Route route = getRoute(address);
+                if (!route.isEjected(now)) {
+                    healthy.add(route);
+                }
+            }
+            if (healthy.isEmpty()) {
+                for (InetSocketAddress address : addresses) {
+                    healthy.add(getRoute(address));
                 }
             }
-            if (sockets.isEmpty()) {
-                pool.remove(entry.getKey());
+            Route route = pick(healthy);
+            picked = route.address;
+            if (route.idle.isEmpty() && route.count() < maxPerRoute && total() < maxTotal) {
+                candidates = interleave(route, healthy);
             }
+        } finally {
+            lock.unlock();
         }
-        if (pool.size() == 0) {
-            stopTimer();
+        if (candidates == null) {
+            return borrowSocketAsync(picked);
         }
+        Race race = new Race(candidates);
+        startAttempt(race);
+        return race.future;
     }
 
-    private void stopTimer() {
-        synchronized (timer) {
-            timer.cancel();
-            timer.purge();
-            isTimerRun = false;
+    /**
+     * Power of two choices on outstanding sockets.
+     */
+    private Route pick(List<Route> healthy) {
+        if (healthy.size() == 1) {
+            return healthy.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int i = random.nextInt(healthy.size()), j = random.nextInt(healthy.size() - 1);
+        if (j >= i) {
+            j++;
         }
-        getTracer().writeLine("stopTimer..");
+        Route a = healthy.get(i), b = healthy.get(j);
+        return a.outstanding() <= b.outstanding() ? a : b;
     }
 
-    private ConcurrentLinkedDeque<PooledSocket> getSockets(InetSocketAddress remoteAddr) {
-        ConcurrentLinkedDeque<PooledSocket> sockets = pool.get(remoteAddr);
-        if (sockets == null) {
-            pool.put(remoteAddr, sockets = new ConcurrentLinkedDeque<>());
-            runTimer();
+    /**
+     * The pick first, then the other addresses alternating families as RFC 8305 suggests.
+     */
+    private List<InetSocketAddress> interleave(Route first, List<Route> healthy) {
+        List<InetSocketAddress> v6 = new ArrayList<>(), v4 = new ArrayList<>();
+        for (Route route : healthy) {
+            if (route != first) {
+                (route.address.getAddress() instanceof Inet6Address ? v6 : v4).add(route.address);
+            }
+        }
+        List<InetSocketAddress> order = new ArrayList<>(healthy.size());
+        order.add(first.address);
+        boolean takeV6 = !(first.address.getAddress() instanceof Inet6Address);
+        while (!v6.isEmpty() || !v4.isEmpty()) {
+            List<InetSocketAddress> from = takeV6 ? v6 : v4;
+            if (from.isEmpty()) {
+                from = takeV6 ? v4 : v6;
+            }
+            order.add(from.remove(0));
+            takeV6 = !takeV6;
         }
-        return sockets;
+        return order;
     }
 
-    public PooledSocket borrowSocket(InetSocketAddress remoteAddr) {
-        checkNotClosed();
-        require(remoteAddr);
+    private void startAttempt(Race race) {
+        Route route = null;
+        boolean queue = false;
+        IOException failed = null;
+        lock.lock();
+        try {
+            if (race.future.isDone() || isClosed()) {
+                return;
+            }
+            while (route == null && race.next < race.candidates.size()) {
+                Route candidate = getRoute(race.candidates.get(race.next++));
+                if (candidate.count() < maxPerRoute && total() < maxTotal) {
+                    candidate.connecting++;
+                    connectingCount++;
+                    race.running++;
+                    route = candidate;
+                }
+            }
+            if (route == null && race.running == 0) {
+                if (race.lastError != null) {
+                    failed = race.lastError;
+                } else {
+                    //no slot for any address, wait in the queue of the first one
+                    queue = true;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (failed != null) {
+            race.future.completeExceptionally(new SocketException(race.candidates.get(0), failed));
+            return;
+        }
+        if (queue) {
+            borrowSocketAsync(race.candidates.get(0)).whenComplete((p, e) -> {
+                if (e != null) {
+                    race.future.completeExceptionally(e);
+                } else if (!race.future.complete(p)) {
+                    returnSocket(p);
+                }
+            });
+            return;
+        }
+        if (route == null) {
+            return;
+        }
 
-        boolean isExisted = true;
-        ConcurrentLinkedDeque<PooledSocket> sockets = getSockets(remoteAddr);
-        PooledSocket pooledSocket;
-        if ((pooledSocket = sockets.pollFirst()) == null) {
-            Socket sock = new Socket();
+        Route attempt = route;
+        ScheduledFuture<?> delay = scheduler.schedule(() -> startAttempt(race), AttemptDelay,
+                TimeUnit.MILLISECONDS);
+        AsyncTask.VirtualFactory.run(() -> {
+            Socket sock;
             try {
-                sock.connect(remoteAddr, connectTimeout);
+                sock = dial(attempt);
             } catch (IOException ex) {
-                throw new SocketException(remoteAddr, ex);
+                lock.lock();
+                try {
+                    race.running--;
+                    race.lastError = ex;
+                } finally {
+                    lock.unlock();
+                }
+                delay.cancel(false);
+                startAttempt(race);
+                return;
+            }
+
+            PooledSocket socket = new PooledSocket(this, attempt, sock);
+            boolean won;
+            lock.lock();
+            try {
+                race.running--;
+                attempt.connecting--;
+                connectingCount--;
+                if (won = !race.future.isDone()) {
+                    lease(socket);
+                } else {
+                    attempt.idle.addFirst(socket);
+                    idleCount++;
+                }
+            } finally {
+                lock.unlock();
             }
-            pooledSocket = new PooledSocket(this, sock);
-            isExisted = false;
+            if (!won) {
+                dispatch();
+                return;
+            }
+            delay.cancel(false);
+            if (!race.future.complete(socket)) {
+                returnSocket(socket);
+                return;
+            }
+            getTracer().writeLine("borrow new socket[local=%s, remote=%s] by race..", Sockets.getId(sock, false),
+                    Sockets.getId(sock, true));
+        }, "SocketPool[race]");
+    }
+
+    private Route getRoute(InetSocketAddress remoteAddr) {
+        return routes.computeIfAbsent(remoteAddr, Route::new);
+    }
+
+    /**
+     * Leases an idle socket, starts a connect or queues the waiter, loops while idle sockets fail validation.
+     */
+    private void acquire(Waiter waiter) {
+        while (true) {
+            PooledSocket socket, evicted = null;
+            Route route;
+            boolean timedOut = false;
+            lock.lock();
+            try {
+                if (isClosed()) {
+                    waiter.future.completeExceptionally(new SocketException(waiter.address, "SocketPool closed"));
+                    return;
+                }
+                route = getRoute(waiter.address);
+                if ((socket = route.idle.pollFirst()) != null) {
+                    idleCount--;
+                    lease(socket);
+                } else if (route.count() < maxPerRoute
+                        && (total() < maxTotal || (evicted = evictIdle(route)) != null)) {
+                    route.connecting++;
+                    connectingCount++;
+                } else {
+                    //a waiter woken by dispatch keeps its place and its deadline
+                    if (waiter.timeout == null) {
+                        waiters.addLast(waiter);
+                        waiter.timeout = scheduler.schedule(() -> onTimeout(waiter), borrowTimeout,
+                                TimeUnit.MILLISECONDS);
+                    } else if (!waiter.timedOut) {
+                        waiters.addFirst(waiter);
+                    } else {
+                        //the deadline passed while it was being dispatched
+                        timedOut = true;
+                    }
+                    if (!timedOut) {
+                        return;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            if (timedOut) {
+                waiter.future.completeExceptionally(timeoutException(waiter));
+                return;
+            }
+            if (evicted != null) {
+                closeSocket(evicted);
+            }
+            if (socket == null) {
+                connect(waiter, route);
+                return;
+            }
+            if (validate(socket)) {
+                complete(waiter, socket, true);
+                return;
+            }
+            getTracer().writeLine("discard stale socket[local=%s, remote=%s]..", Sockets.getId(socket.socket, false),
+                    Sockets.getId(socket.socket, true));
+            discard(socket);
         }
-        if (!pooledSocket.isConnected()) {
-            if (isExisted) {
-                sockets.remove(pooledSocket);
+    }
+
+    private int total() {
+        return leasedCount + idleCount + connectingCount;
+    }
+
+    private void lease(PooledSocket socket) {
+        socket.leased = true;
+        socket.route.leased++;
+        leasedCount++;
+    }
+
+    /**
+     * Frees a slot for another endpoint by dropping the least recently used idle socket elsewhere.
+     */
+    private PooledSocket evictIdle(Route except) {
+        PooledSocket victim = null;
+        for (Route route : routes.values()) {
+            PooledSocket last;
+            if (route != except && (last = route.idle.peekLast()) != null
+                    && (victim == null || last.getLastActive().before(victim.getLastActive()))) {
+                victim = last;
             }
-            return borrowSocket(remoteAddr);
         }
-        Socket sock = pooledSocket.socket;
+        if (victim != null) {
+            victim.route.idle.removeLast();
+            idleCount--;
+        }
+        return victim;
+    }
+
+    /**
+     * The caller has counted the connect against the route, a failure releases it.
+     */
+    private Socket dial(Route route) throws IOException {
+        long start = System.nanoTime();
+        Socket sock = new Socket();
+        try {
+            sock.connect(route.address, connectTimeout);
+        } catch (IOException ex) {
+            connectFailureCount.increment();
+            try {
+                sock.close();
+            } catch (IOException e) {
+                Logger.debug("SocketPool close: %s", e.getMessage());
+            }
+            lock.lock();
+            try {
+                route.connecting--;
+                connectingCount--;
+                //ejection doubles with every failure in a row
+                route.failures++;
+                route.ejectedUntil = System.currentTimeMillis()
+                        + Math.min((long) EjectMillis << Math.min(route.failures - 1, 16), MaxEjectMillis);
+            } finally {
+                lock.unlock();
+            }
+            getTracer().writeLine("eject %s after %s failures..", route.address, route.failures);
+            dispatch();
+            throw ex;
+        }
+        connectNanos.add(System.nanoTime() - start);
+        connectCount.increment();
+        lock.lock();
+        try {
+            route.failures = 0;
+            route.ejectedUntil = 0;
+        } finally {
+            lock.unlock();
+        }
+        return sock;
+    }
+
+    private void connect(Waiter waiter, Route route) {
+        AsyncTask.VirtualFactory.run(() -> {
+            Socket sock;
+            try {
+                sock = dial(route);
+            } catch (IOException ex) {
+                waiter.future.completeExceptionally(new SocketException(route.address, ex));
+                return;
+            }
+
+            PooledSocket socket = new PooledSocket(this, route, sock);
+            lock.lock();
+            try {
+                route.connecting--;
+                connectingCount--;
+                lease(socket);
+            } finally {
+                lock.unlock();
+            }
+            complete(waiter, socket, false);
+        }, "SocketPool[connect]");
+    }
+
+    private void complete(Waiter waiter, PooledSocket socket, boolean isExisted) {
+        if (waiter.timeout != null) {
+            waiter.timeout.cancel(false);
+        }
+        if (!waiter.future.complete(socket)) {
+            //the borrower gave up meanwhile
+            returnSocket(socket);
+            return;
+        }
+        Socket sock = socket.socket;
         getTracer().writeLine("borrow %s socket[local=%s, remote=%s]..", isExisted ? "existed" : "new",
                 Sockets.getId(sock, false), Sockets.getId(sock, true));
-        return pooledSocket;
+    }
+
+    private void onTimeout(Waiter waiter) {
+        lock.lock();
+        try {
+            waiter.timedOut = true;
+            if (!waiters.remove(waiter)) {
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        waiter.future.completeExceptionally(timeoutException(waiter));
+    }
+
+    private SocketException timeoutException(Waiter waiter) {
+        return new SocketException(waiter.address, String.format("SocketPool borrow timeout after %sms",
+                borrowTimeout));
+    }
+
+    /**
+     * Hands freed slots to queued borrowers in FIFO order.
+     */
+    private void dispatch() {
+        while (true) {
+            Waiter ready = null;
+            lock.lock();
+            try {
+                for (Iterator<Waiter> it = waiters.iterator(); it.hasNext(); ) {
+                    Waiter waiter = it.next();
+                    Route route = routes.get(waiter.address);
+                    boolean hasIdle = route != null && !route.idle.isEmpty();
+                    int routeCount = route == null ? 0 : route.count();
+                    if (hasIdle || (routeCount < maxPerRoute && (total() < maxTotal || idleCount > 0))) {
+                        it.remove();
+                        ready = waiter;
+                        break;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (ready == null) {
+                return;
+            }
+            acquire(ready);
+        }
+    }
+
+    /**
+     * Cheap liveness check: state flags, then a 1ms read on sockets idle longer than validateAfterInactivity. A
+     * read that returns data also fails, the peer is out of sync.
+     */
+    private boolean validate(PooledSocket pooledSocket) {
+        Socket sock = pooledSocket.socket;
+        if (!pooledSocket.isConnected() || sock.isInputShutdown() || sock.isOutputShutdown()) {
+            return false;
+        }
+        if (DateTime.utcNow().subtract(pooledSocket.getLastActive()).getTotalMilliseconds()
+                < validateAfterInactivity) {
+            return true;
+        }
+        try {
+            int timeout = sock.getSoTimeout();
+            sock.setSoTimeout(1);
+            try {
+                InputStream in = sock.getInputStream();
+                in.read();
+                return false;
+            } catch (SocketTimeoutException ex) {
+                return true;
+            } finally {
+                sock.setSoTimeout(timeout);
+            }
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    private void discard(PooledSocket socket) {
+        lock.lock();
+        try {
+            if (!socket.leased) {
+                return;
+            }
+            socket.leased = false;
+            socket.route.leased--;
+            leasedCount--;
+        } finally {
+            lock.unlock();
+        }
+        closeSocket(socket);
+    }
+
+    private void closeSocket(PooledSocket socket) {
+        try {
+            Sockets.close(socket.socket);
+        } catch (Exception ex) {
+            Logger.debug("SocketPool close: %s", ex.getMessage());
+        }
     }
 
     public void returnSocket(PooledSocket pooledSocket) {
-        checkNotClosed();
         require(pooledSocket);
 
         String action = "return";
+        boolean keep = false;
+        lock.lock();
         try {
-            if (!pooledSocket.isConnected()) {
-                action = "discard closed";
+            if (!pooledSocket.leased) {
+                action = "discard returned";
                 return;
             }
-            pooledSocket.setLastActive(DateTime.utcNow());
-            ConcurrentLinkedDeque<PooledSocket> sockets = getSockets(
-                    (InetSocketAddress) pooledSocket.socket.getRemoteSocketAddress());
-            if (sockets.size() >= maxSocketsCount || sockets.contains(pooledSocket)) {
-                action = "discard contains";
-                return;
+            pooledSocket.leased = false;
+            Route route = pooledSocket.route;
+            route.leased--;
+            leasedCount--;
+            if (!pooledSocket.isConnected()) {
+                action = "discard closed";
+            } else if (route.idle.size() >= maxSocketsCount) {
+                action = "discard overflow";
+            } else {
+                pooledSocket.setLastActive(DateTime.utcNow());
+                route.idle.addFirst(pooledSocket);
+                idleCount++;
+                keep = true;
             }
-
-            sockets.addFirst(pooledSocket);
         } finally {
+            lock.unlock();
             Socket sock = pooledSocket.socket;
             getTracer().writeLine("%s socket[local=%s, remote=%s]..", action, Sockets.getId(sock, false),
                     Sockets.getId(sock, true));
         }
+        if (!keep) {
+            closeSocket(pooledSocket);
+        }
+        dispatch();
     }
 
     public void clear() {
         checkNotClosed();
 
-        for (Socket socket : NQuery.of(pool.values()).selectMany(p -> p).select(p -> p.socket)) {
-            try {
-                getTracer().writeLine("clear socket[local=%s, remote=%s]..", Sockets.getId(socket, false),
-                        Sockets.getId(socket, true));
-                Sockets.close(socket);
-            } catch (Exception ex) {
-                Logger.error(ex, "SocketPool clear");
+        List<PooledSocket> idle = new ArrayList<>();
+        lock.lock();
+        try {
+            for (Iterator<Route> it = routes.values().iterator(); it.hasNext(); ) {
+                Route route = it.next();
+                idle.addAll(route.idle);
+                route.idle.clear();
+                if (route.isRemovable(System.currentTimeMillis())) {
+                    it.remove();
+                }
             }
+            idleCount = 0;
+        } finally {
+            lock.unlock();
+        }
+        for (PooledSocket socket : idle) {
+            getTracer().writeLine("clear socket[local=%s, remote=%s]..", Sockets.getId(socket.socket, false),
+                    Sockets.getId(socket.socket, true));
+            closeSocket(socket);
         }
-        pool.clear();
     }
 }
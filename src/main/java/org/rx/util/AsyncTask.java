@@ -42,9 +42,37 @@ public final class AsyncTask {
         }
     }
 
-    public static final AsyncTask    TaskFactory = new AsyncTask(0, Integer.MAX_VALUE, 4, new SynchronousQueue<>());
-    private static final int         ThreadCount = Runtime.getRuntime().availableProcessors() + 1;
-    private final ThreadPoolExecutor executor;
+    public static final AsyncTask    TaskFactory    = new AsyncTask(0, Integer.MAX_VALUE, 4, new SynchronousQueue<>());
+    /**
+     * One virtual thread per task on JDK 21+, TaskFactory otherwise.
+     */
+    public static final AsyncTask    VirtualFactory = createVirtual();
+    private static final int         ThreadCount    = Runtime.getRuntime().availableProcessors() + 1;
+    private final ExecutorService    executor;
+    private final boolean            virtual;
+
+    private static AsyncTask createVirtual() {
+        try {
+            //the target is Java 8, so the JDK 21 API is looked up reflectively
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, "AsyncTask-v", 0L);
+            builder = builderType.getMethod("uncaughtExceptionHandler", Thread.UncaughtExceptionHandler.class)
+                    .invoke(builder, (Thread.UncaughtExceptionHandler) (thread, ex) -> Logger.error(ex,
+                            thread.getName()));
+            ThreadFactory threadFactory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            ExecutorService executor = (ExecutorService) Executors.class
+                    .getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, threadFactory);
+            return new AsyncTask(executor, true);
+        } catch (ReflectiveOperationException ex) {
+            Logger.debug("AsyncTask virtual threads unavailable, fallback to TaskFactory");
+            return TaskFactory;
+        }
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
 
     private AsyncTask() {
         this(ThreadCount, ThreadCount, 4, new LinkedBlockingQueue<>());
@@ -59,6 +87,12 @@ public final class AsyncTask {
                     Logger.info("AsyncTask rejected task: %s", p1.toString());
                     p1.run();
                 });
+        virtual = false;
+    }
+
+    private AsyncTask(ExecutorService executor, boolean virtual) {
+        this.executor = executor;
+        this.virtual = virtual;
     }
 
     public <T> Future<T> run(Func<T> task) {
@@ -5,14 +5,18 @@ import org.rx.Disposable;
 import org.rx.ErrorCode;
 import org.rx.SystemException;
 import org.rx.bean.Const;
-import org.rx.cache.BufferSegment;
+import org.rx.cache.BufferPool;
+import org.rx.cache.BytesSegment;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 import static org.rx.Contract.require;
 import static org.rx.Contract.values;
 
 public class IOStream extends Disposable implements Closeable, Flushable {
+    private static final int MaxChunkSize = Const.DefaultBufferSize * 8;
+
     public static void copyTo(InputStream from, OutputStream to) {
         require(from, to);
 
@@ -126,6 +130,34 @@ public class IOStream extends Disposable implements Closeable, Flushable {
         }
     }
 
+    /**
+     * Reads once into the remaining space of dst, a direct dst is filled through a pooled heap chunk.
+     *
+     * @return bytes read or -1 at the end of stream
+     */
+    public int read(ByteBuffer dst) {
+        checkNotClosed();
+        require(dst);
+
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        if (dst.hasArray()) {
+            int read = read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            if (read > 0) {
+                dst.position(dst.position() + read);
+            }
+            return read;
+        }
+        try (BytesSegment chunk = BufferPool.Default.alloc(Math.min(dst.remaining(), MaxChunkSize))) {
+            int read = read(chunk.array, chunk.offset, chunk.count);
+            if (read > 0) {
+                dst.put(chunk.array, chunk.offset, read);
+            }
+            return read;
+        }
+    }
+
     public void write(int b) {
         checkNotClosed();
 
@@ -155,6 +187,30 @@ public class IOStream extends Disposable implements Closeable, Flushable {
         }
     }
 
+    /**
+     * Writes all remaining bytes of src.
+     */
+    public void write(ByteBuffer src) {
+        checkNotClosed();
+        require(src);
+
+        if (src.hasArray()) {
+            write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+            src.position(src.limit());
+            return;
+        }
+        if (!src.hasRemaining()) {
+            return;
+        }
+        try (BytesSegment chunk = BufferPool.Default.alloc(Math.min(src.remaining(), MaxChunkSize))) {
+            while (src.hasRemaining()) {
+                int count = Math.min(src.remaining(), chunk.count);
+                src.get(chunk.array, chunk.offset, count);
+                write(chunk.array, chunk.offset, count);
+            }
+        }
+    }
+
     @Override
     public void flush() {
         checkNotClosed();
@@ -6,6 +6,8 @@ import org.rx.SystemException;
 import org.rx.cache.BytesSegment;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import static org.rx.Contract.require;
 import static org.rx.Contract.values;
@@ -79,6 +81,17 @@ public class MemoryStream extends IOStream {
             afterWrite();
         }
 
+        public synchronized void write(ByteBuffer src) {
+            int len = src.remaining();
+            beforeWrite(len);
+            if (count + len > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length << 1, count + len));
+            }
+            src.get(buf, count, len);
+            count += len;
+            afterWrite();
+        }
+
         private void beforeWrite(int count) {
             require(count, getPosition() + count < maxLength);
         }
@@ -90,10 +103,17 @@ public class MemoryStream extends IOStream {
         }
 
         @Override
-        public synchronized void writeTo(OutputStream out) throws IOException {
+        public void writeTo(OutputStream out) throws IOException {
             require(out);
 
-            out.write(getBuffer(), minPosition, getLength());
+            byte[] buffer;
+            int length;
+            synchronized (this) {
+                buffer = getBuffer();
+                length = getLength();
+            }
+            //written outside the monitor, a blocking socket write would pin a virtual thread
+            out.write(buffer, minPosition, length);
         }
 
         @Override
@@ -129,6 +149,16 @@ public class MemoryStream extends IOStream {
             setBuffer(buffer, offset, count, offset);
         }
 
+        public synchronized int read(ByteBuffer dst) {
+            if (pos >= count) {
+                return -1;
+            }
+            int len = Math.min(count - pos, dst.remaining());
+            dst.put(buf, pos, len);
+            pos += len;
+            return len;
+        }
+
         public synchronized void setBuffer(byte[] buffer, int offset, int count, int mark) {
             require(buffer);
             require(offset, offset >= 0);
@@ -236,6 +266,15 @@ public class MemoryStream extends IOStream {
         return super.read(buffer, offset, count);
     }
 
+    @Override
+    public int read(ByteBuffer dst) {
+        checkNotClosed();
+        require(dst);
+
+        checkRead();
+        return dst.hasRemaining() ? reader.read(dst) : 0;
+    }
+
     @Override
     public void copyTo(IOStream to) {
         require(to);
@@ -265,6 +304,15 @@ public class MemoryStream extends IOStream {
         checkRead();
     }
 
+    @Override
+    public void write(ByteBuffer src) {
+        checkNotClosed();
+        require(src);
+
+        writer.write(src);
+        checkRead();
+    }
+
     public void writeTo(IOStream from) {
         checkNotClosed();
         require(from);
@@ -0,0 +1,333 @@
+package org.rx.test;
+
+import org.junit.Test;
+import org.rx.App;
+import org.rx.cache.BoundedCache;
+import org.rx.cache.BufferPool;
+import org.rx.cache.ByteBufferSegment;
+import org.rx.cache.BytesSegment;
+import org.rx.cache.MappedCache;
+import org.rx.cache.OffHeapCache;
+import org.rx.cache.WeakCache;
+import org.rx.util.AsyncTask;
+import org.rx.util.MemoryStream;
+
+import java.nio.channels.Pipe;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+public class CacheTester {
+    @Test
+    public void testBoundedCache() {
+        BoundedCache<Integer, String> cache = new BoundedCache<>(10);
+        for (int i = 0; i < 10; i++) {
+            cache.add(i, String.valueOf(i));
+        }
+        //hot keys are promoted to the protected segment
+        for (int i = 0; i < 3; i++) {
+            assert cache.get(i).equals(String.valueOf(i));
+        }
+        for (int i = 100; i < 120; i++) {
+            cache.add(i, String.valueOf(i));
+        }
+        assert cache.size() == 10 && cache.getWeight() == 10;
+        assert cache.get(0) != null && cache.get(1) != null && cache.get(2) != null;
+        assert cache.get(5) == null;
+        assert cache.getEvictionCount() == 20;
+        assert cache.getHitCount() == 6 && cache.getMissCount() == 1;
+
+        BoundedCache<String, String> weighted = new BoundedCache<>(10);
+        weighted.setWeigher((k, v) -> v.length());
+        weighted.add("a", "12345");
+        weighted.add("b", "12345");
+        weighted.add("c", "123");
+        assert weighted.get("a") == null && weighted.getWeight() == 8;
+
+        AtomicInteger loads = new AtomicInteger();
+        BoundedCache<String, Integer> expiring = new BoundedCache<>(10);
+        expiring.setExpireAfterWrite(50);
+        assert expiring.getOrAdd("k", p -> loads.incrementAndGet()) == 1;
+        assert expiring.getOrAdd("k", p -> loads.incrementAndGet()) == 1;
+        App.sleep(80);
+        assert expiring.getOrAdd("k", p -> loads.incrementAndGet()) == 2;
+        assert expiring.size() == 1 && expiring.getWeight() == 1;
+
+        Object val = App.getOrStore(CacheTester.class, "bounded", k -> new Object(),
+                App.CacheContainerKind.BoundedCache);
+        assert val == App.getOrStore(CacheTester.class, "bounded", k -> new Object(),
+                App.CacheContainerKind.BoundedCache);
+    }
+
+    @Test
+    public void testSingleFlight() throws Exception {
+        WeakCache<String, Object> cache = new WeakCache<>();
+        AtomicInteger loads = new AtomicInteger();
+        Object value = new Object();
+        Function<String, Object> supplier = p -> {
+            loads.incrementAndGet();
+            App.sleep(100);
+            return value;
+        };
+        int count = 8;
+        CountDownLatch latch = new CountDownLatch(count);
+        List<Object> results = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < count; i++) {
+            AsyncTask.TaskFactory.run(() -> {
+                results.add(cache.getOrAdd("key", supplier));
+                latch.countDown();
+            });
+        }
+        latch.await();
+        assert loads.get() == 1;
+        assert results.size() == count && results.stream().allMatch(p -> p == value);
+
+        CompletableFuture<Object> future = cache.getOrAddAsync("async", supplier);
+        assert cache.getOrAddAsync("async", supplier) == future;
+        assert future.get() == value && loads.get() == 2;
+        assert cache.getOrAddAsync("async", supplier).isDone();
+
+        try {
+            cache.getOrAdd("error", p -> {
+                throw new IllegalStateException("load error");
+            });
+            assert false;
+        } catch (IllegalStateException e) {
+            System.out.println(e.getMessage());
+        }
+
+        //the supplier runs outside the map, so it may load other keys
+        BoundedCache<String, Object> shared = new BoundedCache<>(100);
+        CountDownLatch boundedLatch = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            AsyncTask.TaskFactory.run(() -> {
+                shared.getOrAdd("key", supplier);
+                boundedLatch.countDown();
+            });
+        }
+        boundedLatch.await();
+        assert loads.get() == 3;
+        BoundedCache<Integer, Object> bounded = new BoundedCache<>(100);
+        AtomicReference<Function<Integer, Object>> nested = new AtomicReference<>();
+        nested.set(p -> p == 0 ? 0 : (int) bounded.getOrAdd(p - 1, nested.get()) + 1);
+        assert bounded.getOrAdd(20, nested.get()).equals(20) && bounded.size() == 21;
+        try {
+            bounded.getOrAdd(-1, p -> bounded.getOrAdd(-1, p2 -> 0));
+            assert false;
+        } catch (IllegalStateException e) {
+            System.out.println(e.getMessage());
+        }
+        //the failed load is not left in flight
+        assert bounded.getOrAdd(-1, p -> 1).equals(1);
+    }
+
+    @Test
+    public void testExpunge() {
+        WeakCache<Integer, Object> cache = new WeakCache<>();
+        Object live = new Object();
+        cache.add(0, live);
+        for (int i = 1; i <= 100; i++) {
+            cache.add(i, new Object());
+        }
+        assert cache.size() == 101;
+        for (int i = 0; i < 10 && cache.getExpungedCount() < 100; i++) {
+            System.gc();
+            App.sleep(50);
+            cache.expungeStaleEntries();
+        }
+        assert cache.getExpungedCount() == 100;
+        assert cache.size() == 1 && cache.getLiveCount() == 1 && cache.getStaleCount() == 0;
+        assert cache.get(0) == live;
+    }
+
+    @Test
+    public void testRefreshAhead() {
+        BoundedCache<String, Integer> cache = new BoundedCache<>(10);
+        cache.setRefreshAfterWrite(50);
+        cache.setMaxStaleness(1000);
+        AtomicInteger version = new AtomicInteger();
+        Function<String, Integer> loader = p -> {
+            int v = version.incrementAndGet();
+            if (v == 3) {
+                throw new IllegalStateException("reload error");
+            }
+            return v;
+        };
+        assert cache.getOrAdd("k", loader) == 1;
+        App.sleep(80);
+        //stale value served, reload runs in background
+        assert cache.getOrAdd("k", loader) == 1;
+        for (int i = 0; i < 20 && cache.getRefreshCount() == 0; i++) {
+            App.sleep(10);
+        }
+        assert cache.get("k") == 2 && cache.getRefreshCount() == 1;
+
+        App.sleep(80);
+        assert cache.get("k") == 2;
+        for (int i = 0; i < 50 && cache.getRefreshFailureCount() == 0; i++) {
+            App.sleep(10);
+        }
+        assert cache.get("k") == 2 && cache.getRefreshFailureCount() == 1;
+
+        App.sleep(1000);
+        assert cache.getOrAdd("k", loader) >= 4;
+    }
+
+    @Test
+    public void testOffHeapCache() {
+        try (OffHeapCache<String> cache = new OffHeapCache<>(4096, 1024, 64)) {
+            byte[] small = "hello".getBytes(), large = new byte[1500];
+            for (int i = 0; i < large.length; i++) {
+                large[i] = (byte) i;
+            }
+            assert cache.add("small", small) && cache.add("large", large);
+            assert Arrays.equals(cache.get("small"), small) && Arrays.equals(cache.get("large"), large);
+            assert cache.getUsedBytes() == 1505 && cache.getAllocatedBytes() == 2048;
+            assert !cache.add("huge", new byte[5000]);
+            //a rejected value leaves the previous one in place
+            assert !cache.add("small", new byte[5000]) && Arrays.equals(cache.get("small"), small);
+
+            //"small" was read last, "large" is evicted first
+            cache.get("small");
+            assert cache.add("a", new byte[1500]) && cache.add("b", new byte[1500]);
+            assert cache.get("large") == null && cache.getEvictionCount() == 1;
+            assert cache.getSegment("small").count == small.length;
+            assert cache.getAllocatedBytes() == cache.getCapacity();
+
+            cache.remove("a");
+            assert cache.size() == 2 && cache.getUsedBytes() == 1505;
+        }
+    }
+
+    @Test
+    public void testMappedCache() throws Exception {
+        Path file = Files.createTempFile("rx", ".cache");
+        Files.delete(file);
+        try {
+            try (MappedCache cache = new MappedCache(file, 1024)) {
+                cache.add("a", "va");
+                cache.add("b", 2);
+                cache.add("skip", new Object());
+                cache.remove("a");
+                assert cache.get("a") == null && cache.size() == 1;
+            }
+            try (MappedCache cache = new MappedCache(file, 1024)) {
+                assert cache.get("b").equals(2) && cache.get("a") == null && cache.size() == 1;
+                //overwrites fill the file, compaction keeps only the live records
+                for (int i = 0; i < 100; i++) {
+                    assert cache.addBytes("c", new byte[100]);
+                }
+                assert cache.get("b").equals(2) && cache.getBytes("c").length == 100;
+                assert !cache.addBytes("huge", new byte[2048]);
+
+                BoundedCache<String, Object> l1 = new BoundedCache<>(10);
+                l1.setSecondLevel(cache);
+                AtomicInteger loads = new AtomicInteger();
+                assert l1.getOrAdd("b", p -> loads.incrementAndGet()).equals(2) && loads.get() == 0;
+                assert l1.getOrAdd("d", p -> "vd" + loads.incrementAndGet()).equals("vd1");
+                assert cache.get("d").equals("vd1");
+            }
+            Thread.sleep(300);
+            try (MappedCache cache = new MappedCache(file, 1024)) {
+                BoundedCache<String, Object> l1 = new BoundedCache<>(10);
+                l1.setSecondLevel(cache);
+                assert l1.get("d").equals("vd1") && l1.size() == 1;
+
+                //the stored write time survives the reopen, an aged value is not brought back
+                l1 = new BoundedCache<>(10);
+                l1.setExpireAfterWrite(200);
+                l1.setSecondLevel(cache);
+                assert cache.getWriteTime("d") > 0 && l1.get("d") == null && cache.get("d") == null;
+                l1.add("e", "ve");
+                l1.clear();
+                assert l1.get("e") == null && cache.size() == 0;
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testBufferPool() throws Exception {
+        BufferPool pool = new BufferPool(4096, 4);
+        BytesSegment a = pool.alloc(1000), b = pool.alloc(1000), c = pool.alloc(300);
+        assert a.count == 1000 && a.array.length == 1024 && c.array.length == 512;
+        assert pool.getMissCount() == 3 && pool.getOutstandingCount() == 3;
+
+        //out of order and double release
+        a.close();
+        a.close();
+        b.close();
+        assert pool.getReleaseCount() == 2 && pool.getOutstandingCount() == 1;
+        BytesSegment d = pool.alloc(800);
+        assert d.array == a.array && pool.getMissCount() == 3;
+
+        //released on another thread and reused here, the queue keeps at most maxPooledPerClass
+        List<BytesSegment> many = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            many.add(pool.alloc(2000));
+        }
+        Thread releaser = new Thread(() -> many.forEach(BytesSegment::close));
+        releaser.start();
+        releaser.join();
+        assert pool.getPooledCount() == 1 + 4;
+        BytesSegment e = pool.alloc(2000), f = pool.alloc(2000);
+        assert e.array != f.array && pool.getPooledCount() == 1 + 2 && pool.getMissCount() == 23;
+
+        assert pool.alloc(10000).array.length == 10000;
+
+        long leaks = pool.getLeakCount();
+        int pooled = pool.getPooledCount();
+        pool.alloc(100);
+        for (int i = 0; i < 10 && pool.getLeakCount() == leaks; i++) {
+            System.gc();
+            App.sleep(50);
+        }
+        //a leaked array may still be referenced, so it never goes back to the pool
+        assert pool.getLeakCount() > leaks && pool.getPooledCount() == pooled;
+        c.close();
+        d.close();
+        e.close();
+        f.close();
+    }
+
+    @Test
+    public void testDirectSegment() throws Exception {
+        BufferPool pool = new BufferPool(4096, 4);
+        ByteBufferSegment a = pool.allocDirect(1000);
+        assert a.isDirect() && a.getCapacity() == 1000;
+        a.buffer.put("hello".getBytes()).flip();
+
+        MemoryStream stream = new MemoryStream();
+        stream.write(a.buffer);
+        assert stream.getLength() == 5 && stream.getPosition() == 5;
+        stream.setPosition(0);
+        ByteBufferSegment b = pool.allocDirect(700);
+        assert stream.read(b.buffer) == 5;
+        b.buffer.flip();
+        byte[] data = new byte[5];
+        b.buffer.get(data);
+        assert new String(data).equals("hello");
+        a.close();
+        b.close();
+        assert pool.getOutstandingCount() == 0;
+        assert pool.allocDirect(900).getCapacity() == 900 && pool.getMissCount() == 2;
+
+        Pipe pipe = Pipe.open();
+        try (ByteBufferSegment c = pool.allocDirect(64)) {
+            c.buffer.put("channel".getBytes()).flip();
+            assert c.writeTo(pipe.sink()) == 7;
+            assert c.readFrom(pipe.source()) == 7 && c.buffer.remaining() == 7;
+        }
+        pipe.sink().close();
+        pipe.source().close();
+    }
+}
@@ -0,0 +1,256 @@
+package org.rx.test;
+
+import org.junit.Test;
+import org.rx.DoubleQuery;
+import org.rx.IntQuery;
+import org.rx.LongQuery;
+import org.rx.NQuery;
+import org.rx.SystemException;
+import org.rx.bean.CompositeKey;
+import org.rx.bean.Tuple;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class NQueryTester {
+    private static List<Integer> range(int count) {
+        List<Integer> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(i);
+        }
+        return list;
+    }
+
+    @Test
+    public void testLazy() {
+        AtomicInteger visited = new AtomicInteger();
+        NQuery<Integer> q = NQuery.of(range(1000)).lazy().where(p -> {
+            visited.incrementAndGet();
+            return p % 2 == 1;
+        }).take(10);
+        assert q.isLazy();
+        assert visited.get() == 0;
+
+        assert q.first() == 1;
+        assert visited.get() == 2;
+
+        visited.set(0);
+        assert q.count() == 10;
+        assert visited.get() == 20;
+        assert q.select(p -> p * 2).toList().equals(Arrays.asList(2, 6, 10, 14, 18, 22, 26, 30, 34, 38));
+
+        NQuery<Integer> q2 = NQuery.of(range(10)).lazy().skipWhile(p -> p < 5).select((p, i) -> p * 10 + i);
+        assert q2.toList().equals(Arrays.asList(50, 61, 72, 83, 94));
+        assert q2.toList().equals(q2.toList());
+        assert NQuery.of(range(10)).skipWhile(p -> p < 5).toList().equals(Arrays.asList(5, 6, 7, 8, 9));
+        assert NQuery.of(range(10)).lazy().groupBy(p -> p % 3, p -> p.right.count()).sum(p -> p) == 10;
+    }
+
+    @Test
+    public void testHashJoin() {
+        List<Integer> orders = Arrays.asList(1, 2, 2, 3, 5);
+        List<String> customers = Arrays.asList("1a", "2b", "2c", "4d");
+        List<String> joined = NQuery.of(orders)
+                .join(customers, p -> p, p -> Integer.valueOf(p.substring(0, 1)), (p, c) -> p + c).toList();
+        assert joined.equals(Arrays.asList("11a", "22b", "22c", "22b", "22c"));
+
+        List<String> left = NQuery.of(orders)
+                .leftJoin(customers, p -> p, p -> Integer.valueOf(p.substring(0, 1)), (p, c) -> p + ":" + c).toList();
+        assert left.equals(Arrays.asList("1:1a", "2:2b", "2:2c", "2:2b", "2:2c", "3:null", "5:null"));
+
+        List<Integer> counts = NQuery.of(orders)
+                .groupJoin(customers, p -> p, p -> Integer.valueOf(p.substring(0, 1)), (p, cs) -> cs.count())
+                .toList();
+        assert counts.equals(Arrays.asList(1, 2, 2, 0, 0));
+
+        assert NQuery.of(orders).except(Arrays.asList(2, 5)).toList().equals(Arrays.asList(1, 3));
+        assert NQuery.of(orders).intersect(Arrays.asList(2, 5)).toList().equals(Arrays.asList(2, 2, 5));
+    }
+
+    @Test
+    public void testPrimitiveQuery() {
+        IntQuery q = NQuery.of(range(101)).selectInt(p -> p);
+        assert q.sum() == 5050;
+        assert q.min() == 0 && q.max() == 100;
+        assert q.average() == 50;
+        assert q.percentile(50) == 50;
+        assert q.percentile(99.5) == 99.5;
+        assert Arrays.equals(q.histogram(10, 50), new int[] { 10, 40, 51 });
+        assert q.where(p -> p % 2 == 0).count() == 51;
+
+        assert NQuery.of(range(4)).selectLong(p -> p * 1000000000L).sum() == 6000000000L;
+        LongQuery lq = LongQuery.of(Long.MAX_VALUE, 1);
+        assert lq.percentile(100) == Long.MAX_VALUE && lq.percentile(0) == 1;
+        try {
+            lq.sum();
+            assert false;
+        } catch (ArithmeticException e) {
+            System.out.println(e.getMessage());
+        }
+        DoubleQuery dq = NQuery.of(range(4)).selectDouble(p -> p / 2d);
+        assert dq.sum() == 3 && dq.max() == 1.5;
+        assert Double.isNaN(IntQuery.of().average());
+        try {
+            IntQuery.of().max();
+            assert false;
+        } catch (SystemException e) {
+            assert e.getFriendlyMessage().contains("no elements") : e.getFriendlyMessage();
+        }
+    }
+
+    @Test
+    public void testGroupBy() {
+        assert CompositeKey.of(1, "a").equals(CompositeKey.of(1, "a"));
+        assert !CompositeKey.of(1, "a").equals(CompositeKey.of("a", 1));
+
+        Map<Integer, Long> counts = NQuery.of(range(10))
+                .groupBy(p -> p % 3, Collectors.counting(), Tuple::of).toMap(p -> p.left, p -> p.right);
+        assert counts.get(0) == 4 && counts.get(1) == 3 && counts.get(2) == 3;
+        //null keys group the same way in every overload
+        NQuery<Integer> withNull = NQuery.of(1, null, 2, null);
+        assert withNull.groupBy(p -> p, Collectors.counting(), Tuple::of).where(p -> p.left == null)
+                .single().right == 2;
+        assert withNull.groupBy(p -> p, p -> p.right.count()).count() == 3;
+
+        Map<Object, Integer> sums = NQuery.of(range(10))
+                .groupByMany(p -> new Object[] { p % 2, p < 5 }, Collectors.summingInt(p -> p),
+                        (k, v) -> Tuple.of(CompositeKey.of(k), v))
+                .toMap(p -> p.left, p -> p.right);
+        assert sums.get(CompositeKey.of(0, true)) == 6 && sums.get(CompositeKey.of(1, false)) == 21;
+        assert NQuery.of(range(10)).groupByMany(p -> new Object[] { p % 2, p < 5 }, p -> p.right.count())
+                .count() == 4;
+    }
+
+    @Test
+    public void testTopK() {
+        List<Integer> list = Arrays.asList(5, 3, 9, 1, 9, 7, 2);
+        assert NQuery.of(list).topK(3, p -> p).toList().equals(Arrays.asList(9, 9, 7));
+        assert NQuery.of(list).topK(0, p -> p).count() == 0;
+        assert NQuery.of(list).topK(10, p -> p).toList().equals(Arrays.asList(9, 9, 7, 5, 3, 2, 1));
+
+        AtomicInteger keyCalls = new AtomicInteger();
+        List<Integer> sorted = NQuery.of(list).orderBy(p -> {
+            keyCalls.incrementAndGet();
+            return p;
+        }).toList();
+        assert sorted.equals(Arrays.asList(1, 2, 3, 5, 7, 9, 9));
+        assert keyCalls.get() == list.size();
+
+        NQuery<String> q = NQuery.of(Arrays.asList("b2", "a1", "c1", "a2", "b1")).lazy()
+                .orderByMany(p -> new Object[] { p.substring(1), p.substring(0, 1) });
+        assert q.take(3).toList().equals(Arrays.asList("a1", "b1", "c1"));
+        assert q.toList().equals(Arrays.asList("a1", "b1", "c1", "a2", "b2"));
+        assert NQuery.of(list).lazy().orderByDescending(p -> p % 5).take(2).toList().equals(Arrays.asList(9, 9));
+
+        //an eager sort runs at once, key errors surface at orderBy and later source changes do not leak in
+        keyCalls.set(0);
+        List<Integer> source = new ArrayList<>(list);
+        NQuery<Integer> eager = NQuery.of(source).orderByDescending(p -> {
+            keyCalls.incrementAndGet();
+            return p;
+        });
+        assert !eager.isLazy() && keyCalls.get() == list.size();
+        source.clear();
+        assert eager.take(2).toList().equals(Arrays.asList(9, 9)) && keyCalls.get() == list.size();
+        assert eager.toList().equals(Arrays.asList(9, 9, 7, 5, 3, 2, 1)) && eager.first() == 9;
+        try {
+            NQuery.of(list).orderBy(p -> {
+                throw new IllegalArgumentException("key error");
+            });
+            assert false;
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+        }
+        assert NQuery.of(list).orderBy(p -> p).take(3).toList().equals(Arrays.asList(1, 2, 3));
+    }
+
+    @Test
+    public void testParallel() {
+        List<Integer> list = range(100000);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        NQuery<Integer> q = NQuery.of(list, true).parallel(pool, 1000);
+        assert q.select((p, i) -> p - i).all(p -> p == 0);
+        assert q.where((p, i) -> i % 2 == 0).select(p -> p / 2).toList().equals(range(50000));
+        assert q.selectMany(p -> Arrays.asList(p, p)).count() == 200000;
+        assert q.orderByDescending(p -> p).first() == 99999;
+        assert q.groupBy(p -> p % 10, p -> p.right.first()).orderBy(p -> p).toList().equals(range(10));
+        assert NQuery.of(list, true).where((p, i) -> p == i).count() == list.size();
+        pool.shutdown();
+    }
+
+    @Test
+    public void testStreamingSource() throws Exception {
+        NQuery<Integer> q = NQuery.of(range(10).iterator());
+        assert q.where(p -> p > 4).first() == 5;
+        try {
+            q.count();
+            assert false;
+        } catch (SystemException e) {
+            System.out.println(e.getFriendlyMessage());
+        }
+        try {
+            NQuery.of(range(10).iterator()).join(p -> p, (p, p2) -> p.equals(p2), (p, p2) -> p);
+            assert false;
+        } catch (SystemException e) {
+            System.out.println(e.getFriendlyMessage());
+        }
+
+        Iterable<Integer> iterable = () -> range(5).iterator();
+        NQuery<Integer> q2 = NQuery.of(iterable).concat(iterable).except(Arrays.asList(0, 1));
+        assert q2.count() == 6;
+        assert q2.sum(p -> p) == 18;
+
+        Path file = Files.createTempFile("nquery", ".log");
+        try {
+            Files.write(file, Arrays.asList("info a", "error b", "info c", "error d"));
+            NQuery<String> lines = NQuery.lines(file).where(p -> p.startsWith("error"));
+            assert lines.first().equals("error b");
+            assert lines.toList().equals(Arrays.asList("error b", "error d"));
+
+            //short-circuits close the reader instead of waiting for the end of the file
+            Path fds = Paths.get("/proc/self/fd");
+            if (Files.isDirectory(fds)) {
+                long before = countFiles(fds);
+                for (int i = 0; i < 100; i++) {
+                    assert lines.first().equals("error b") && lines.any();
+                    assert NQuery.lines(file).takeWhile(p -> p.startsWith("info")).count() == 1;
+                }
+                assert countFiles(fds) < before + 10;
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static long countFiles(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.count();
+        }
+    }
+
+    @Test
+    public void testIndexedFastPath() {
+        List<Integer> list = range(10);
+        NQuery<Integer> q = NQuery.of(list);
+        assert q.first() == 0 && q.last() == 9 && q.any();
+        assert q.reverse().toList().equals(Arrays.asList(9, 8, 7, 6, 5, 4, 3, 2, 1, 0));
+        assert NQuery.of(3, 1, 2).reverse().toList().equals(Arrays.asList(2, 1, 3));
+        assert q.skip(7).toList().equals(Arrays.asList(7, 8, 9));
+        assert q.skip(20).count() == 0 && q.take(-1).count() == 0;
+        assert q.skip(2).take(3).reverse().toList().equals(Arrays.asList(4, 3, 2));
+        assert q.skip(9).single() == 9;
+        assert NQuery.of(new ArrayList<Integer>()).lastOrDefault() == null;
+        assert NQuery.of(range(10).iterator()).where(p -> p == 3).single() == 3;
+        assert NQuery.of(list).lazy().where(p -> p > 5).reverse().first() == 9;
+    }
+}
@@ -0,0 +1,501 @@
+package org.rx.test;
+
+import com.alibaba.fastjson.JSON;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Test;
+import org.rx.bean.Tuple;
+import org.rx.feign.RestClient;
+import org.rx.App;
+import org.rx.SystemException;
+import org.rx.cache.BufferPool;
+import org.rx.socket.DirectSocket;
+import org.rx.socket.HttpClient;
+import org.rx.socket.HttpEngine;
+import org.rx.socket.SocketPool;
+import org.rx.socket.Sockets;
+import org.rx.test.bean.RestApi;
+import org.rx.test.bean.RestParam;
+import org.rx.util.AsyncTask;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class SocketTester {
+    private static ServerSocket echoServer() throws Exception {
+        ServerSocket server = new ServerSocket(0, 128, Sockets.LocalAddress);
+        AsyncTask.TaskFactory.run(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket sock = server.accept();
+                    AsyncTask.TaskFactory.run(() -> {
+                        try (Socket p = sock) {
+                            InputStream in = p.getInputStream();
+                            OutputStream out = p.getOutputStream();
+                            byte[] buffer = new byte[8192];
+                            int read;
+                            while ((read = in.read(buffer)) >= 0) {
+                                out.write(buffer, 0, read);
+                            }
+                        } catch (Exception ex) {
+                            //peer gone
+                        }
+                    });
+                } catch (Exception ex) {
+                    //closed
+                }
+            }
+        });
+        return server;
+    }
+
+    private static byte[] echo(InetSocketAddress addr, byte[] data) throws Exception {
+        try (Socket sock = new Socket()) {
+            sock.connect(addr, 5000);
+            sock.setSoTimeout(10000);
+            AsyncTask.TaskFactory.run(() -> {
+                try {
+                    sock.getOutputStream().write(data);
+                    sock.shutdownOutput();
+                } catch (Exception ex) {
+                    //checked by the reader
+                }
+            });
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            InputStream in = sock.getInputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                result.write(buffer, 0, read);
+            }
+            return result.toByteArray();
+        }
+    }
+
+    private static byte[] payload(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+
+    @Test
+    public void testFailedDial() throws Exception {
+        InetSocketAddress closed;
+        try (ServerSocket server = new ServerSocket(0, 1, Sockets.LocalAddress)) {
+            closed = (InetSocketAddress) server.getLocalSocketAddress();
+        }
+        int outstanding = BufferPool.Default.getOutstandingCount();
+        try (DirectSocket proxy = new DirectSocket(new InetSocketAddress(Sockets.LocalAddress, 0), closed, null)) {
+            proxy.setConnectRetryCount(1);
+            try (Socket sock = new Socket(Sockets.LocalAddress, proxy.getLocalAddress().getPort())) {
+                sock.setSoTimeout(10000);
+                assert sock.getInputStream().read() == -1;
+            }
+        }
+        //the client buffer goes back to the pool instead of leaking
+        for (int i = 0; i < 20 && BufferPool.Default.getOutstandingCount() > outstanding; i++) {
+            App.sleep(50);
+        }
+        assert BufferPool.Default.getOutstandingCount() == outstanding;
+    }
+
+    @Test
+    public void testBlockingRelay() throws Exception {
+        try (ServerSocket server = echoServer();
+             DirectSocket proxy = new DirectSocket(new InetSocketAddress(Sockets.LocalAddress, 0),
+                     (InetSocketAddress) server.getLocalSocketAddress(), null)) {
+            InetSocketAddress addr = new InetSocketAddress(Sockets.LocalAddress, proxy.getLocalAddress().getPort());
+            //request and response in turns, the relay must keep reading after the first burst
+            try (Socket sock = new Socket(addr.getAddress(), addr.getPort())) {
+                sock.setSoTimeout(10000);
+                byte[] chunk = payload(32 * 1024), back = new byte[chunk.length];
+                for (int i = 0; i < 4; i++) {
+                    sock.getOutputStream().write(chunk);
+                    for (int read = 0, n; read < back.length; read += n) {
+                        n = sock.getInputStream().read(back, read, back.length - read);
+                        assert n > 0;
+                    }
+                    assert Arrays.equals(back, chunk);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSelectorRelay() throws Exception {
+        try (ServerSocket server = echoServer();
+             DirectSocket proxy = new DirectSocket(new InetSocketAddress(Sockets.LocalAddress, 0),
+                     (InetSocketAddress) server.getLocalSocketAddress(), null, DirectSocket.RelayMode.Selector)) {
+            assert proxy.getRelayMode() == DirectSocket.RelayMode.Selector;
+            InetSocketAddress addr = new InetSocketAddress(Sockets.LocalAddress, proxy.getLocalAddress().getPort());
+
+            //larger than both relay buffers so backpressure kicks in
+            byte[] data = payload(1024 * 1024);
+            assert Arrays.equals(echo(addr, data), data);
+
+            int count = 32;
+            byte[] small = payload(64 * 1024);
+            List<Throwable> errors = new CopyOnWriteArrayList<>();
+            CountDownLatch latch = new CountDownLatch(count);
+            for (int i = 0; i < count; i++) {
+                AsyncTask.TaskFactory.run(() -> {
+                    try {
+                        if (!Arrays.equals(echo(addr, small), small)) {
+                            errors.add(new AssertionError("echo mismatch"));
+                        }
+                    } catch (Throwable ex) {
+                        errors.add(ex);
+                    } finally {
+                        latch.countDown();
+                    }
+                });
+            }
+            latch.await();
+            assert errors.isEmpty() : errors;
+        }
+    }
+
+    @Test
+    public void testSelectorRelaySupplier() throws Exception {
+        try (ServerSocket server = echoServer()) {
+            InetSocketAddress echoAddr = (InetSocketAddress) server.getLocalSocketAddress();
+            //waits for the first line like HttpSupplier does
+            DirectSocket.SocketSupplier supplier = pack -> {
+                if (pack.getLength() < 4) {
+                    return null;
+                }
+                Socket sock = new Socket();
+                try {
+                    sock.connect(echoAddr);
+                } catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+                return Tuple.of(sock, sock);
+            };
+            try (DirectSocket proxy = new DirectSocket(new InetSocketAddress(Sockets.LocalAddress, 0), null, supplier,
+                    DirectSocket.RelayMode.Selector)) {
+                InetSocketAddress addr = new InetSocketAddress(Sockets.LocalAddress, proxy.getLocalAddress().getPort());
+                byte[] data = payload(200 * 1024);
+                assert Arrays.equals(echo(addr, data), data);
+            }
+        }
+    }
+
+    @Test
+    public void testSocketPool() throws Exception {
+        try (ServerSocket server = echoServer(); SocketPool pool = new SocketPool()) {
+            InetSocketAddress addr = (InetSocketAddress) server.getLocalSocketAddress();
+            pool.setMaxPerRoute(2);
+            pool.setBorrowTimeout(200);
+
+            SocketPool.PooledSocket a = pool.borrowSocket(addr), b = pool.borrowSocket(addr);
+            assert pool.getLeasedCount() == 2 && pool.getConnectCount() == 2 && pool.getConnectMillis() > 0;
+            CompletableFuture<SocketPool.PooledSocket> waiting = pool.borrowSocketAsync(addr);
+            assert !waiting.isDone() && pool.getPendingCount() == 1;
+            a.close();
+            //the waiter takes the returned socket
+            assert waiting.get() == a && pool.getPendingCount() == 0 && pool.getConnectCount() == 2;
+            a.close();
+            assert pool.getLeasedCount() == 1 && pool.getIdleCount() == 1;
+            a.close();
+            assert pool.getLeasedCount() == 1 && pool.getIdleCount() == 1;
+
+            SocketPool.PooledSocket c = pool.borrowSocket(addr);
+            long start = System.currentTimeMillis();
+            try {
+                pool.borrowSocket(addr);
+                assert false;
+            } catch (SystemException ex) {
+                assert ex.getMessage().contains("timeout");
+            }
+            assert System.currentTimeMillis() - start >= 200 && pool.getPendingCount() == 0;
+            b.close();
+            c.close();
+            assert pool.getLeasedCount() == 0 && pool.getIdleCount() == 2;
+        }
+
+        //a peer close is caught on borrow and a fresh socket is dialed
+        try (ServerSocket server = new ServerSocket(0, 16, Sockets.LocalAddress); SocketPool pool = new SocketPool()) {
+            AsyncTask.TaskFactory.run(() -> {
+                while (!server.isClosed()) {
+                    try {
+                        server.accept().close();
+                    } catch (Exception ex) {
+                        //closed
+                    }
+                }
+            });
+            InetSocketAddress addr = (InetSocketAddress) server.getLocalSocketAddress();
+            pool.setValidateAfterInactivity(0);
+            SocketPool.PooledSocket a = pool.borrowSocket(addr);
+            a.close();
+            App.sleep(100);
+            SocketPool.PooledSocket b = pool.borrowSocket(addr);
+            assert b != a && pool.getConnectCount() == 2 && pool.getIdleCount() == 0;
+            b.close();
+        }
+    }
+
+    @Test
+    public void testPrewarm() throws Exception {
+        try (ServerSocket server = echoServer(); SocketPool pool = new SocketPool()) {
+            InetSocketAddress addr = (InetSocketAddress) server.getLocalSocketAddress();
+            pool.prewarm(addr, 3).get();
+            assert pool.getIdleCount() == 3 && pool.getConnectCount() == 3 && pool.getMinIdle(addr) == 3;
+
+            SocketPool.PooledSocket a = pool.borrowSocket(addr);
+            assert pool.getConnectCount() == 3;
+            //a dropped socket is replaced by the maintainer
+            Sockets.close(a.socket);
+            a.close();
+            assert pool.getIdleCount() == 2;
+            for (int i = 0; i < 100 && pool.getIdleCount() < 3; i++) {
+                App.sleep(100);
+            }
+            assert pool.getIdleCount() == 3 && pool.getConnectCount() == 4;
+
+            pool.setMinIdle(addr, 0);
+            assert pool.getMinIdle(addr) == 0;
+        }
+    }
+
+    @Test
+    public void testSocketPoolBalance() throws Exception {
+        InetSocketAddress dead;
+        try (ServerSocket closed = new ServerSocket(0, 1, Sockets.LocalAddress)) {
+            dead = (InetSocketAddress) closed.getLocalSocketAddress();
+        }
+        try (ServerSocket server = echoServer(); ServerSocket server2 = echoServer();
+             SocketPool pool = new SocketPool()) {
+            InetSocketAddress addr = (InetSocketAddress) server.getLocalSocketAddress(),
+                    addr2 = (InetSocketAddress) server2.getLocalSocketAddress();
+            //the race falls over to the live address and the refused one is ejected
+            for (int i = 0; i < 20 && !pool.isEjected(dead); i++) {
+                SocketPool.PooledSocket socket = pool.borrowSocket(Arrays.asList(dead, addr));
+                assert socket.socket.getRemoteSocketAddress().equals(addr);
+                socket.close();
+            }
+            assert pool.isEjected(dead) && !pool.isEjected(addr) && pool.getConnectFailureCount() >= 1;
+
+            //least outstanding of two spreads held sockets evenly
+            List<SocketPool.PooledSocket> held = new CopyOnWriteArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                held.add(pool.borrowSocket(Arrays.asList(addr, addr2)));
+            }
+            long onFirst = held.stream().filter(p -> p.socket.getRemoteSocketAddress().equals(addr)).count();
+            assert onFirst == 2 : onFirst;
+            for (SocketPool.PooledSocket socket : held) {
+                socket.close();
+            }
+
+            SocketPool.PooledSocket byHost = pool.borrowSocket(Sockets.LocalAddress.getHostAddress(), addr.getPort());
+            assert byHost.socket.getRemoteSocketAddress().equals(addr);
+            byHost.close();
+        }
+    }
+
+    private static HttpServer httpServer() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress(Sockets.LocalAddress, 0), 128);
+        server.createContext("/echo", p -> {
+            byte[] body = (p.getRequestMethod() + ":" + App.readString(p.getRequestBody())).getBytes("UTF-8");
+            p.getResponseHeaders().set("Content-Type", "text/plain;charset=utf-8");
+            p.sendResponseHeaders(200, body.length);
+            p.getResponseBody().write(body);
+            p.close();
+        });
+        server.createContext("/chunked", p -> {
+            p.sendResponseHeaders(200, 0);
+            for (int i = 0; i < 3; i++) {
+                p.getResponseBody().write(payload(10000));
+                p.getResponseBody().flush();
+            }
+            p.close();
+        });
+        server.createContext("/redirect", p -> {
+            p.getResponseHeaders().set("Location", "/echo");
+            p.sendResponseHeaders(302, -1);
+            p.close();
+        });
+        server.createContext("/auth", p -> {
+            String auth = p.getRequestHeaders().getFirst("Authorization");
+            p.getResponseHeaders().set("X-Method", p.getRequestMethod());
+            p.getResponseHeaders().set("X-Auth", auth == null ? "none" : auth);
+            p.sendResponseHeaders(200, -1);
+            p.close();
+        });
+        server.createContext("/error", p -> {
+            p.sendResponseHeaders(500, -1);
+            p.close();
+        });
+        server.setExecutor(AsyncTask.TaskFactory::run);
+        server.start();
+        return server;
+    }
+
+    @Test
+    public void testHttpEngine() throws Exception {
+        HttpServer server = httpServer();
+        try (HttpEngine engine = new HttpEngine()) {
+            String baseUrl = "http://" + Sockets.LocalAddress.getHostAddress() + ":" + server.getAddress().getPort();
+            HttpClient client = new HttpClient();
+            client.setEngine(engine);
+            engine.setMaxPerHost(2);
+
+            //keep-alive reuses one socket for sequential requests
+            for (int i = 0; i < 5; i++) {
+                assert client.httpGet(baseUrl + "/echo").equals("GET:");
+            }
+            assert engine.getPool().getConnectCount() == 1;
+            assert client.httpPost(baseUrl + "/echo", Collections.singletonMap("a", "1")).equals("POST:a=1");
+            HttpEngine.Response chunked = engine.sendAsync("GET", baseUrl + "/chunked", null, (byte[]) null, 10000)
+                    .get();
+            assert chunked.getStatusCode() == 200 && chunked.getBody().length == 30000;
+
+            //caller framing headers are dropped, the body below must not bleed into the next request
+            Map<String, String> framing = new HashMap<>();
+            framing.put("Content-Length", "100");
+            framing.put("transfer-encoding", "chunked");
+            framing.put("Host", "other");
+            for (int i = 0; i < 2; i++) {
+                HttpEngine.Response echo = engine.sendAsync("POST", baseUrl + "/echo", framing, "ab".getBytes(),
+                        10000).get();
+                assert echo.getString().equals("POST:ab");
+            }
+            CompletableFuture<HttpEngine.Response> badUrl = engine.sendAsync("GET", "ftp://localhost/", null,
+                    (byte[]) null, 10000);
+            assert badUrl.isCompletedExceptionally();
+            assert client.httpGet(baseUrl + "/redirect").equals("GET:");
+
+            //HEAD survives a 302, credentials do not follow a redirect to another port
+            HttpServer other = httpServer();
+            String otherUrl = "http://" + Sockets.LocalAddress.getHostAddress() + ":" + other.getAddress().getPort();
+            try {
+                server.createContext("/away", p -> {
+                    p.getResponseHeaders().set("Location", p.getRequestURI().getQuery().equals("same") ? "/auth"
+                            : otherUrl + "/auth");
+                    p.sendResponseHeaders(302, -1);
+                    p.close();
+                });
+                Map<String, String> headers = Collections.singletonMap("Authorization", "Basic cng=");
+                HttpEngine.Response same = engine.sendAsync("HEAD", baseUrl + "/away?same", headers, (byte[]) null,
+                        10000).get();
+                assert same.getHeader("X-Method").equals("HEAD") && same.getHeader("X-Auth").equals("Basic cng=");
+                HttpEngine.Response away = engine.sendAsync("GET", baseUrl + "/away?other", headers, (byte[]) null,
+                        10000).get();
+                assert away.getStatusCode() == 200 && away.getHeader("X-Auth").equals("none");
+            } finally {
+                other.stop(0);
+            }
+            try {
+                client.httpGet(baseUrl + "/error");
+                assert false;
+            } catch (SystemException ex) {
+                assert ex.getFriendlyMessage().contains("500") : ex.getFriendlyMessage();
+            }
+
+            //the per host limit holds under concurrency
+            long connects = engine.getPool().getConnectCount();
+            List<CompletableFuture<String>> futures = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                futures.add(client.httpGetAsync(baseUrl + "/echo"));
+            }
+            for (CompletableFuture<String> future : futures) {
+                assert future.get().equals("GET:");
+            }
+            assert engine.getPool().getConnectCount() - connects <= 2;
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testHttpStreaming() throws Exception {
+        String text = String.join(",", Collections.nCopies(20000, "streaming"));
+        HttpServer server = HttpServer.create(new InetSocketAddress(Sockets.LocalAddress, 0), 128);
+        server.createContext("/", p -> {
+            String path = p.getRequestURI().getPath();
+            //RestClient has to parse the bean in the charset the response declares
+            String charset = path.contains("/add2") ? "UTF-16" : "UTF-8";
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            if (path.endsWith("/gzip")) {
+                try (GZIPOutputStream out = new GZIPOutputStream(body)) {
+                    out.write(text.getBytes("UTF-8"));
+                }
+                p.getResponseHeaders().set("Content-Encoding", "gzip");
+            } else if (path.endsWith("/deflate")) {
+                //raw deflate without the zlib wrapper
+                try (DeflaterOutputStream out = new DeflaterOutputStream(body, new Deflater(6, true))) {
+                    out.write(text.getBytes("UTF-8"));
+                }
+                p.getResponseHeaders().set("Content-Encoding", "deflate");
+            } else if (path.contains("/add2")) {
+                RestParam param = JSON.parseObject(App.readString(p.getRequestBody()), RestParam.class);
+                body.write(("{\"code\":0,\"val\":" + (param.getA() + param.getB()) + "}").getBytes(charset));
+            } else {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = p.getRequestBody().read(buffer)) >= 0) {
+                    body.write(buffer, 0, read);
+                }
+            }
+            p.getResponseHeaders().set("Content-Type", "application/json;charset=" + charset);
+            p.sendResponseHeaders(200, 0);
+            body.writeTo(p.getResponseBody());
+            p.close();
+        });
+        server.setExecutor(AsyncTask.TaskFactory::run);
+        server.start();
+        try (HttpEngine engine = new HttpEngine()) {
+            String baseUrl = "http://" + Sockets.LocalAddress.getHostAddress() + ":" + server.getAddress().getPort();
+            HttpClient client = new HttpClient();
+            client.setEngine(engine);
+
+            assert client.httpGet(baseUrl + "/gzip").equals(text);
+            assert client.httpGet(baseUrl + "/deflate").equals(text);
+            HttpEngine.Response response = engine.sendAsync("GET", baseUrl + "/gzip", null, (byte[]) null,
+                    App.TimeoutInfinite).get();
+            assert response.getHeader("Content-Encoding") == null && response.getString().equals(text);
+
+            //the entity is written chunked and the echo parsed off the stream
+            List<Integer> entity = new ArrayList<>();
+            for (int i = 0; i < 200000; i++) {
+                entity.add(i);
+            }
+            try (InputStream in = client.httpPostStream(baseUrl + "/echo", entity)) {
+                List<Integer> echo = JSON.parseObject(in, StandardCharsets.UTF_8, List.class);
+                assert echo.equals(entity);
+            }
+            //closing a partly read stream frees the socket
+            try (InputStream in = client.httpGetStream(baseUrl + "/gzip")) {
+                assert in.read() == 's';
+            }
+            assert engine.getPool().getLeasedCount() == 0;
+
+            RestApi api = RestClient.create(RestApi.class, baseUrl, null, false);
+            RestParam param = new RestParam();
+            param.setA(12);
+            param.setB(12);
+            assert api.add2(param).getVal() == 24;
+        } finally {
+            server.stop(0);
+        }
+    }
+}